@@ -11,5 +11,16 @@ public class ArticleConstants {
     public static final Integer HOT_ARTICLE_COMMENT_WEIGHT = 5;
     public static final Integer HOT_ARTICLE_COLLECTION_WEIGHT = 8;
 
-    public static final String HOT_ARTICLE_FIRST_PAGE = "hot_article_first_page_";
+    public static final String HOT_ARTICLE_RANK = "hot_article_rank_";
+    public static final String HOT_ARTICLE_CARDS = "hot_article_cards_";
+    public static final Integer HOT_ARTICLE_SIZE = 30;
+    /**
+     * 排行中保留的候选文章数，排行外的文章累计分数会丢失，多保留一些避免刚掉出前30的文章重新从零累计
+     */
+    public static final Integer HOT_ARTICLE_CANDIDATE_SIZE = 100;
+    public static final String HOT_ARTICLE_VERSION = "hot_article_version_";
+
+    public static final String ARTICLE_FEED_INVALIDATE_TOPIC = "article.feed.invalidate.topic";
+    public static final String FEED_PAGE = "feed_page_";
+    public static final String FEED_VERSION = "feed_version_";
 }
\ No newline at end of file
@@ -4,5 +4,6 @@ public class HotArticleConstants {
 
     public static final String HOT_ARTICLE_SCORE_TOPIC="hot.article.score.topic";
     public static final String HOT_ARTICLE_INCR_HANDLE_TOPIC="hot.article.incr.handle.topic";
+    public static final String HOT_ARTICLE_TRENDING_TOPIC="hot.article.trending.topic";
 
 }
\ No newline at end of file
@@ -9,7 +9,31 @@ public class ScheduleConstants {
 
     public static final int CANCELLED=2;   //已取消状态
 
+    public static final int LEASED=3;      //已租约状态，等待消费方确认
+
+    public static final int DEAD=4;        //重试次数耗尽，已进入死信队列
+
     public static String FUTURE="future_";   //未来数据key前缀
 
     public static String TOPIC="topic_";     //当前数据key前缀
+
+    public static String FUTURE_KEYS="schedule_future_keys";   //已登记的future键集合
+
+    public static String TOPIC_KEYS="schedule_topic_keys";     //已登记的topic键集合，用于发现某类型下的所有优先级
+
+    public static String RELOAD_HIGH_WATER_MARK="schedule_reload_hwm";   //已同步到缓存的execute_time高水位
+
+    public static String SCHEDULE_NODES="schedule_nodes";   //存活的调度节点，score为最近一次心跳时间
+
+    public static String LEASE="lease_";     //租约中数据key前缀，score为租约到期时间
+
+    public static String LEASE_KEYS="schedule_lease_keys";     //已登记的lease键集合，回收到期租约时无需扫描整个键空间
+
+    public static String CLAIMING="claiming_";   //长轮询阻塞弹出后、加租约前暂存任务id的list前缀
+
+    public static String DEAD_LETTER="dead_";   //死信队列key前缀，存放重试次数耗尽的任务id
+
+    public static String DEAD_LETTER_KEYS="schedule_dead_keys";   //已登记的死信队列键集合
+
+    public static String TASK_ATTEMPTS="schedule_task_attempts";   //任务失败次数，field为任务id
 }
\ No newline at end of file
@@ -6,12 +6,14 @@ import org.springframework.dao.DataAccessException;
 import org.springframework.data.redis.connection.*;
 import org.springframework.data.redis.core.*;
 import org.springframework.data.redis.core.ZSetOperations.TypedTuple;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 @Component
@@ -1433,6 +1435,338 @@ public class CacheService extends CachingConfigurerSupport {
         });
         return objects;
     }
+
+    /**
+     * 管道批量写入，list和zset的数据一次提交
+     * @param listValues  list的key -> 从左侧压入的值
+     * @param zSetValues  zset的key -> (值 -> 分数)
+     * @return
+     */
+    public List<Object> addWithPipeline(Map<String, List<String>> listValues, Map<String, Map<String, Double>> zSetValues){
+
+        List<Object> objects = stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Nullable
+            @Override
+            public Object doInRedis(RedisConnection redisConnection) throws DataAccessException {
+                StringRedisConnection stringRedisConnection = (StringRedisConnection)redisConnection;
+                for (Map.Entry<String, List<String>> entry : listValues.entrySet()) {
+                    List<String> values = entry.getValue();
+                    stringRedisConnection.lPush(entry.getKey(),values.toArray(new String[values.size()]));
+                }
+                for (Map.Entry<String, Map<String, Double>> entry : zSetValues.entrySet()) {
+                    for (Map.Entry<String, Double> member : entry.getValue().entrySet()) {
+                        stringRedisConnection.zAdd(entry.getKey(),member.getValue(),member.getKey());
+                    }
+                }
+                return null;
+            }
+        });
+        return objects;
+    }
+    /**
+     * 从list右侧弹出最多count个元素，同时以score写入zset，脚本执行保证原子性
+     */
+    private static final DefaultRedisScript<List> RIGHT_POP_TO_ZSET_SCRIPT = new DefaultRedisScript<>(
+            "local result = {} " +
+            "for i = 1, tonumber(ARGV[1]) do " +
+            "  local v = redis.call('RPOP', KEYS[1]) " +
+            "  if not v then break end " +
+            "  redis.call('ZADD', KEYS[2], ARGV[2], v) " +
+            "  result[#result + 1] = v " +
+            "end " +
+            "return result", List.class);
+
+    /**
+     * 从list中移除一个元素，移除成功时以score写入zset，脚本执行保证原子性
+     */
+    private static final DefaultRedisScript<Long> LIST_REMOVE_TO_ZSET_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('LREM', KEYS[1], 1, ARGV[1]) == 1 then " +
+            "  redis.call('ZADD', KEYS[2], ARGV[2], ARGV[1]) " +
+            "  return 1 " +
+            "end " +
+            "return 0", Long.class);
+
+    /**
+     * 将list中的所有元素按原顺序移回另一个list右侧(最早进入的在最右侧)，脚本执行保证原子性
+     */
+    private static final DefaultRedisScript<Long> LIST_DRAIN_TO_RIGHT_SCRIPT = new DefaultRedisScript<>(
+            "local count = 0 " +
+            "local v = redis.call('LPOP', KEYS[1]) " +
+            "while v do " +
+            "  redis.call('RPUSH', KEYS[2], v) " +
+            "  count = count + 1 " +
+            "  v = redis.call('LPOP', KEYS[1]) " +
+            "end " +
+            "return count", Long.class);
+
+    /**
+     * 将zset中分数不大于max的元素(最多limit个)移动到list右侧，脚本执行保证原子性
+     */
+    private static final DefaultRedisScript<List> ZSET_MOVE_TO_LIST_SCRIPT = new DefaultRedisScript<>(
+            "local values = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2])) " +
+            "if #values > 0 then " +
+            "  redis.call('RPUSH', KEYS[2], unpack(values)) " +
+            "  redis.call('ZREM', KEYS[1], unpack(values)) " +
+            "end " +
+            "return values", List.class);
+
+    /**
+     * 指定元素的分数不大于ARGV[2]时从zset中移除并推入list右侧，脚本执行保证原子性
+     */
+    private static final DefaultRedisScript<Long> ZSET_MEMBER_MOVE_TO_LIST_SCRIPT = new DefaultRedisScript<>(
+            "local score = redis.call('ZSCORE', KEYS[1], ARGV[1]) " +
+            "if score and tonumber(score) <= tonumber(ARGV[2]) then " +
+            "  redis.call('ZREM', KEYS[1], ARGV[1]) " +
+            "  redis.call('RPUSH', KEYS[2], ARGV[1]) " +
+            "  return 1 " +
+            "end " +
+            "return 0", Long.class);
+
+    /**
+     * 按权重从多个非空list中随机选择一个并从右侧弹出一个元素，脚本执行保证原子性
+     * ARGV[1]为[0,1)之间的随机数，由调用方生成(脚本内的随机数种子固定)，ARGV[i+1]为KEYS[i]的权重
+     */
+    private static final DefaultRedisScript<List> WEIGHTED_RIGHT_POP_SCRIPT = new DefaultRedisScript<>(
+            "local total = 0 " +
+            "local weights = {} " +
+            "for i = 1, #KEYS do " +
+            "  local w = 0 " +
+            "  if redis.call('LLEN', KEYS[i]) > 0 then w = tonumber(ARGV[i + 1]) end " +
+            "  weights[i] = w " +
+            "  total = total + w " +
+            "end " +
+            "if total <= 0 then return {} end " +
+            "local r = tonumber(ARGV[1]) * total " +
+            "local chosen = 0 " +
+            "for i = 1, #KEYS do " +
+            "  if weights[i] > 0 then " +
+            "    chosen = i " +
+            "    r = r - weights[i] " +
+            "    if r < 0 then break end " +
+            "  end " +
+            "end " +
+            "return {KEYS[chosen], redis.call('RPOP', KEYS[chosen])}", List.class);
+
+    /**
+     * zset分数为对数形式ln(x)，将成员的x加上或减去e^ARGV[2]后写回对数，并写入对应的hash字段；
+     * ARGV[3]为1时做减法，减到不大于0时移除成员；只保留分数最高的ARGV[5]个成员，被移除成员的hash字段一并删除；
+     * 成员最终保留在zset中或被移除时递增计数器，脚本执行保证原子性
+     */
+    private static final DefaultRedisScript<Long> ZSET_LOG_ADD_WITH_HASH_AND_TRIM_SCRIPT = new DefaultRedisScript<>(
+            "local cur = redis.call('ZSCORE', KEYS[1], ARGV[1]) " +
+            "local w = tonumber(ARGV[2]) " +
+            "local v = nil " +
+            "if cur then " +
+            "  cur = tonumber(cur) " +
+            "  if ARGV[3] == '1' then " +
+            "    if w < cur then v = cur + math.log(1 - math.exp(w - cur)) end " +
+            "  else " +
+            "    local m = math.max(cur, w) " +
+            "    v = m + math.log(math.exp(cur - m) + math.exp(w - m)) " +
+            "  end " +
+            "elseif ARGV[3] ~= '1' then " +
+            "  v = w " +
+            "end " +
+            "if not v then " +
+            "  if cur then " +
+            "    redis.call('ZREM', KEYS[1], ARGV[1]) " +
+            "    redis.call('HDEL', KEYS[2], ARGV[1]) " +
+            "    redis.call('INCR', KEYS[3]) " +
+            "  end " +
+            "  return 0 " +
+            "end " +
+            "redis.call('ZADD', KEYS[1], string.format('%.17g', v), ARGV[1]) " +
+            "redis.call('HSET', KEYS[2], ARGV[1], ARGV[4]) " +
+            "local stop = -(tonumber(ARGV[5]) + 1) " +
+            "local evicted = redis.call('ZRANGE', KEYS[1], 0, stop) " +
+            "if #evicted > 0 then " +
+            "  redis.call('ZREMRANGEBYRANK', KEYS[1], 0, stop) " +
+            "  redis.call('HDEL', KEYS[2], unpack(evicted)) " +
+            "end " +
+            "if redis.call('ZSCORE', KEYS[1], ARGV[1]) then " +
+            "  redis.call('INCR', KEYS[3]) " +
+            "  return 1 " +
+            "end " +
+            "return 0", Long.class);
+
+    /**
+     * 移除zset中分数不大于ARGV[2]的成员，再将不存在的成员以给定分数加入，已存在的成员保持不变；
+     * 只保留分数最高的ARGV[1]个成员，被移除成员的hash字段一并删除，有成员移除或加入时递增计数器，脚本执行保证原子性
+     * ARGV[3]起按(成员, 分数, hash值)依次排列
+     */
+    private static final String ZSET_RECONCILE_WITH_HASH_SCRIPT =
+            "local changed = 0 " +
+            "local removed = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[2]) " +
+            "if #removed > 0 then " +
+            "  redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', ARGV[2]) " +
+            "  redis.call('HDEL', KEYS[2], unpack(removed)) " +
+            "  changed = #removed " +
+            "end " +
+            "for i = 3, #ARGV, 3 do " +
+            "  if redis.call('ZADD', KEYS[1], 'NX', ARGV[i + 1], ARGV[i]) == 1 then " +
+            "    redis.call('HSET', KEYS[2], ARGV[i], ARGV[i + 2]) " +
+            "    changed = changed + 1 " +
+            "  end " +
+            "end " +
+            "local stop = -(tonumber(ARGV[1]) + 1) " +
+            "local evicted = redis.call('ZRANGE', KEYS[1], 0, stop) " +
+            "if #evicted > 0 then " +
+            "  redis.call('ZREMRANGEBYRANK', KEYS[1], 0, stop) " +
+            "  redis.call('HDEL', KEYS[2], unpack(evicted)) " +
+            "end " +
+            "if changed > 0 then redis.call('INCR', KEYS[3]) end " +
+            "return changed";
+
+    /**
+     * 原子地将list中的一个元素移动到zset
+     * @param listKey
+     * @param zSetKey
+     * @param member
+     * @param score
+     * @return 元素在list中并移动成功时返回true
+     */
+    public boolean lRemoveToZSet(String listKey, String zSetKey, String member, double score) {
+        Long result = stringRedisTemplate.execute(LIST_REMOVE_TO_ZSET_SCRIPT, Arrays.asList(listKey, zSetKey),
+                member, String.valueOf(score));
+        return result != null && result == 1;
+    }
+
+    /**
+     * 原子地将sourceKey中的所有元素移回destinationKey右侧，保持从右侧弹出的先后顺序
+     * @param sourceKey
+     * @param destinationKey
+     * @return 移动的元素个数
+     */
+    public long lDrainToRight(String sourceKey, String destinationKey) {
+        Long result = stringRedisTemplate.execute(LIST_DRAIN_TO_RIGHT_SCRIPT, Arrays.asList(sourceKey, destinationKey));
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * 原子地从list右侧弹出最多count个元素，并以score加入zset
+     * @param listKey
+     * @param zSetKey
+     * @param count
+     * @param score
+     * @return 弹出的元素
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> lRightPopToZSet(String listKey, String zSetKey, int count, double score) {
+        return stringRedisTemplate.execute(RIGHT_POP_TO_ZSET_SCRIPT, Arrays.asList(listKey, zSetKey),
+                String.valueOf(count), String.valueOf(score));
+    }
+
+    /**
+     * 按权重从多个list中选择一个非空list，从右侧弹出一个元素
+     * 只在非空的list之间按权重比例选择，权重为0的list不会被选中
+     * @param weights list的key -> 权重
+     * @return [被选中的key, 弹出的元素]，全部为空时返回空列表
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> lWeightedRightPop(Map<String, Integer> weights) {
+        List<String> keys = new ArrayList<>(weights.size());
+        List<String> args = new ArrayList<>(weights.size() + 1);
+        args.add(String.valueOf(ThreadLocalRandom.current().nextDouble()));
+        for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+            keys.add(entry.getKey());
+            args.add(String.valueOf(entry.getValue()));
+        }
+        return stringRedisTemplate.execute(WEIGHTED_RIGHT_POP_SCRIPT, keys, args.toArray());
+    }
+
+    /**
+     * 原子地在对数形式的zset分数上累加或扣减，写入对应的hash字段，并裁剪zset只保留分数最高的keep个成员
+     * 成员原分数为ln(x)时，新分数为ln(x + e^logDelta)或ln(x - e^logDelta)，扣减到不大于0时移除成员
+     * @param zSetKey
+     * @param hashKey     与zset成员一一对应的hash
+     * @param counterKey  zset发生变化时递增的计数器
+     * @param member
+     * @param logDelta    增量的对数
+     * @param subtract    是否扣减
+     * @param hashValue
+     * @param keep
+     * @return 成员是否保留在zset中
+     */
+    public boolean zLogAddWithHashAndTrim(String zSetKey, String hashKey, String counterKey, String member,
+                                          double logDelta, boolean subtract, String hashValue, int keep) {
+        Long result = stringRedisTemplate.execute(ZSET_LOG_ADD_WITH_HASH_AND_TRIM_SCRIPT,
+                Arrays.asList(zSetKey, hashKey, counterKey), member, String.valueOf(logDelta),
+                subtract ? "1" : "0", hashValue, String.valueOf(keep));
+        return result != null && result == 1;
+    }
+
+    /**
+     * 管道批量校正多组zset和对应的hash，每组一次脚本调用，所有组一次提交
+     * 每组先移除分数不大于max的成员，再加入zset中不存在的成员，并裁剪只保留分数最高的keep个成员
+     * @param zSetPrefix     zset的key前缀
+     * @param hashPrefix     hash的key前缀
+     * @param counterPrefix  有成员移除或加入时递增的计数器key前缀
+     * @param max
+     * @param scores         key后缀 -> (成员 -> 分数)
+     * @param hashValues     key后缀 -> (成员 -> hash值)
+     * @param keep
+     * @return 每组移除和加入的成员数
+     */
+    public List<Object> zReconcileWithHashPipeline(String zSetPrefix, String hashPrefix, String counterPrefix, double max,
+                                                   Map<String, Map<String, Double>> scores,
+                                                   Map<String, Map<String, String>> hashValues, int keep) {
+
+        List<Object> objects = stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Nullable
+            @Override
+            public Object doInRedis(RedisConnection redisConnection) throws DataAccessException {
+                StringRedisConnection stringRedisConnection = (StringRedisConnection)redisConnection;
+                for (Map.Entry<String, Map<String, Double>> entry : scores.entrySet()) {
+                    String suffix = entry.getKey();
+                    Map<String, String> values = hashValues.get(suffix);
+                    List<String> keysAndArgs = new ArrayList<>(entry.getValue().size() * 3 + 5);
+                    keysAndArgs.add(zSetPrefix + suffix);
+                    keysAndArgs.add(hashPrefix + suffix);
+                    keysAndArgs.add(counterPrefix + suffix);
+                    keysAndArgs.add(String.valueOf(keep));
+                    keysAndArgs.add(String.valueOf(max));
+                    for (Map.Entry<String, Double> member : entry.getValue().entrySet()) {
+                        keysAndArgs.add(member.getKey());
+                        keysAndArgs.add(String.valueOf(member.getValue()));
+                        keysAndArgs.add(values.get(member.getKey()));
+                    }
+                    stringRedisConnection.eval(ZSET_RECONCILE_WITH_HASH_SCRIPT, ReturnType.INTEGER, 3,
+                            keysAndArgs.toArray(new String[keysAndArgs.size()]));
+                }
+                return null;
+            }
+        });
+        return objects;
+    }
+
+    /**
+     * 原子地将zset中分数不大于max的元素移动到list右侧
+     * @param zSetKey
+     * @param listKey
+     * @param max
+     * @param limit 单次最多移动的元素个数
+     * @return 移动的元素
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> zMoveByScoreToList(String zSetKey, String listKey, double max, int limit) {
+        return stringRedisTemplate.execute(ZSET_MOVE_TO_LIST_SCRIPT, Arrays.asList(zSetKey, listKey),
+                String.valueOf(max), String.valueOf(limit));
+    }
+
+    /**
+     * 原子地将zset中的指定元素移动到list右侧
+     * @param zSetKey
+     * @param listKey
+     * @param value
+     * @param max     元素的分数大于该值时不移动
+     * @return 元素不在zset中或分数大于max时返回false
+     */
+    public boolean zMoveToList(String zSetKey, String listKey, String value, double max) {
+        Long result = stringRedisTemplate.execute(ZSET_MEMBER_MOVE_TO_LIST_SCRIPT, Arrays.asList(zSetKey, listKey),
+                value, String.valueOf(max));
+        return result != null && result == 1;
+    }
+
     /**
      * 加锁
      *
@@ -8,6 +8,8 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 
+import java.util.List;
+
 @FeignClient("leadnews-schedule")
 public interface IScheduleClient {
 
@@ -19,6 +21,14 @@ public interface IScheduleClient {
     @PostMapping("/api/v1/task/add")
     public ResponseResult  addTask(@RequestBody Task task);
 
+    /**
+     * 批量添加任务
+     * @param tasks  任务对象列表
+     * @return       任务id列表
+     */
+    @PostMapping("/api/v1/task/addBatch")
+    public ResponseResult addTasks(@RequestBody List<Task> tasks);
+
     /**
      * 取消任务
      * @param taskId        任务id
@@ -35,4 +45,54 @@ public interface IScheduleClient {
      */
     @GetMapping("/api/v1/task/poll/{type}/{priority}")
     public ResponseResult poll(@PathVariable("type") int type,@PathVariable("priority")  int priority);
-}
\ No newline at end of file
+
+    /**
+     * 按照类型拉取任务，在各优先级之间按权重选择，高优先级的任务优先被拉取
+     * @param type
+     * @return
+     */
+    @GetMapping("/api/v1/task/pollAny/{type}")
+    public ResponseResult pollAny(@PathVariable("type") int type);
+
+    /**
+     * 按照类型和优先级批量拉取任务，并加租约
+     * @param type
+     * @param priority
+     * @param maxBatch      单次最多拉取的任务数
+     * @param leaseMillis   租约时长，毫秒
+     * @return
+     */
+    @GetMapping("/api/v1/task/poll/{type}/{priority}/{maxBatch}/{leaseMillis}")
+    public ResponseResult poll(@PathVariable("type") int type,@PathVariable("priority")  int priority,
+                               @PathVariable("maxBatch") int maxBatch,@PathVariable("leaseMillis") long leaseMillis);
+
+    /**
+     * 长轮询拉取任务，队列为空时阻塞等待，直到有任务到达或超时
+     * @param type
+     * @param priority
+     * @param maxBatch      单次最多拉取的任务数
+     * @param leaseMillis   租约时长，毫秒
+     * @param timeoutMillis 最长等待时间，毫秒，需小于feign读超时时间
+     * @return
+     */
+    @GetMapping("/api/v1/task/longPoll/{type}/{priority}/{maxBatch}/{leaseMillis}/{timeoutMillis}")
+    public ResponseResult longPoll(@PathVariable("type") int type,@PathVariable("priority")  int priority,
+                                   @PathVariable("maxBatch") int maxBatch,@PathVariable("leaseMillis") long leaseMillis,
+                                   @PathVariable("timeoutMillis") long timeoutMillis);
+
+    /**
+     * 确认租约中的任务已执行
+     * @param taskIds       任务id列表
+     * @return              确认成功的任务数
+     */
+    @PostMapping("/api/v1/task/ack")
+    public ResponseResult ack(@RequestBody List<Long> taskIds);
+
+    /**
+     * 上报任务执行失败，由调度服务按退避策略重试，超过重试上限后进入死信队列
+     * @param taskIds       任务id列表
+     * @return              处理成功的任务数
+     */
+    @PostMapping("/api/v1/task/fail")
+    public ResponseResult fail(@RequestBody List<Long> taskIds);
+}
@@ -11,8 +11,14 @@ public class ArticleHomeDto {
     Date maxBehotTime;
     // 最小时间
     Date minBehotTime;
+    // 最大时间对应的文章id，与maxBehotTime组成游标，发布时间相同的文章不会遗漏或重复
+    Long maxBehotId;
+    // 最小时间对应的文章id，与minBehotTime组成游标
+    Long minBehotId;
     // 分页size
     Integer size;
-    // 频道ID
+    // 频道ID，dimension不为空时为对应维度的值
     String tag;
+    // 热点文章维度，为空时按频道，可选province、city、county、label
+    String dimension;
 }
\ No newline at end of file
@@ -1,10 +1,13 @@
 package com.heima.article.controller.v1;
 
 import com.heima.article.service.ApArticleService;
+import com.heima.article.service.HotArticleCacheService;
 import com.heima.common.constants.ArticleConstants;
 import com.heima.model.article.dtos.ArticleHomeDto;
 import com.heima.model.common.dtos.ResponseResult;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -16,9 +19,22 @@ public class ArticleHomeController {
     @Autowired
     private ApArticleService apArticleService;
 
+    @Autowired
+    private HotArticleCacheService hotArticleCacheService;
+
+    /**
+     * 首页优先直接返回本地序列化好的热点文章响应体，没有热点文章时按普通列表加载
+     * 请求带dimension时返回对应地区、标签维度的热点文章
+     * @param dto
+     * @return
+     */
     @PostMapping("/load")
-    public ResponseResult load(@RequestBody ArticleHomeDto dto) {
-        return apArticleService.load2(dto,ArticleConstants.LOADTYPE_LOAD_MORE, true);
+    public ResponseEntity<?> load(@RequestBody ArticleHomeDto dto) {
+        byte[] body = hotArticleCacheService.getFirstPageBody(hotArticleCacheService.tag(dto.getDimension(),dto.getTag()));
+        if(body!=null){
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+        }
+        return ResponseEntity.ok(apArticleService.load2(dto,ArticleConstants.LOADTYPE_LOAD_MORE, true));
     }
 
     @PostMapping("/loadmore")
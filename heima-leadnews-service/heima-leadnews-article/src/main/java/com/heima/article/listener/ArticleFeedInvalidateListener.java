@@ -0,0 +1,32 @@
+package com.heima.article.listener;
+
+import com.heima.article.service.ArticleFeedCacheService;
+import com.heima.common.constants.ArticleConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Component;
+
+@Component
+@Slf4j
+public class ArticleFeedInvalidateListener {
+    @Autowired
+    private ArticleFeedCacheService articleFeedCacheService;
+
+    /**
+     * 监听文章列表缓存失效消息，清除本节点的一级缓存
+     * 每个节点使用独立的消费组，保证所有节点都能收到消息；
+     * 消费组由节点的ip和端口确定，重启后沿用原来的消费组，不会在kafka中遗留无人使用的消费组
+     * @param message 频道id或__all__
+     */
+    @KafkaListener(topics = ArticleConstants.ARTICLE_FEED_INVALIDATE_TOPIC,
+            groupId = "leadnews-article-feed-${spring.cloud.client.ip-address}-${server.port}")
+    public void onMessage(String message){
+        if(StringUtils.isNotBlank(message)){
+            articleFeedCacheService.evictLocal(message);
+            log.debug("article feed local cache evicted, tag={}",message);
+        }
+    }
+
+}
@@ -10,17 +10,30 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Component
 @Slf4j
 public class ArticleIncrHandleListener {
     @Autowired
     private ApArticleService apArticleService;
 
-    @KafkaListener(topics = HotArticleConstants.HOT_ARTICLE_INCR_HANDLE_TOPIC)
-    public void onMessage(String message){
-        if(StringUtils.isNotBlank(message)){
-            ArticleVisitStreamMess mess = JSON.parseObject(message, ArticleVisitStreamMess.class);
-            apArticleService.updateScore(mess);
+    /**
+     * 批量消费文章增量消息，一次拉取的消息合并后统一写库
+     * @param messages 一次拉取的消息
+     */
+    @KafkaListener(topics = HotArticleConstants.HOT_ARTICLE_INCR_HANDLE_TOPIC, containerFactory = "batchKafkaListenerContainerFactory")
+    public void onMessage(List<String> messages){
+        List<ArticleVisitStreamMess> messList = new ArrayList<>(messages.size());
+        for (String message : messages) {
+            if(StringUtils.isNotBlank(message)){
+                messList.add(JSON.parseObject(message, ArticleVisitStreamMess.class));
+            }
+        }
+        if(!messList.isEmpty()){
+            apArticleService.updateScores(messList);
+            log.info("文章增量消息{}条，合并后更新完成",messList.size());
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,39 @@
+package com.heima.article.listener;
+
+import com.alibaba.fastjson.JSON;
+import com.heima.article.service.ApArticleService;
+import com.heima.common.constants.HotArticleConstants;
+import com.heima.model.mess.ArticleVisitStreamMess;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Component
+@Slf4j
+public class ArticleTrendingListener {
+    @Autowired
+    private ApArticleService apArticleService;
+
+    /**
+     * 批量消费高频文章的阅读增量，直接更新热点排行
+     * @param messages 一次拉取的消息
+     */
+    @KafkaListener(topics = HotArticleConstants.HOT_ARTICLE_TRENDING_TOPIC, containerFactory = "batchKafkaListenerContainerFactory")
+    public void onMessage(List<String> messages){
+        List<ArticleVisitStreamMess> messList = new ArrayList<>(messages.size());
+        for (String message : messages) {
+            if(StringUtils.isNotBlank(message)){
+                messList.add(JSON.parseObject(message, ArticleVisitStreamMess.class));
+            }
+        }
+        if(!messList.isEmpty()){
+            apArticleService.updateTrending(messList);
+            log.debug("高频文章阅读增量{}条，热点排行更新完成",messList.size());
+        }
+    }
+}
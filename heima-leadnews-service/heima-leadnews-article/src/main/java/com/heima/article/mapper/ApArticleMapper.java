@@ -3,8 +3,10 @@ package com.heima.article.mapper;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.heima.model.article.dtos.ArticleHomeDto;
 import com.heima.model.article.pojos.ApArticle;
+import com.heima.model.mess.ArticleVisitStreamMess;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
 
 import java.util.Date;
 import java.util.List;
@@ -14,6 +16,8 @@ public interface ApArticleMapper extends BaseMapper<ApArticle> {
 
     public List<ApArticle> loadArticleList(@Param("dto") ArticleHomeDto dto, @Param("type") Short type);
 
-    public List<ApArticle> findArticleListByLast5days(@Param("dayParam") Date dayParam);
+    public Cursor<ApArticle> scanHotArticleCandidates(@Param("dayParam") Date dayParam);
+
+    public int incrCounters(ArticleVisitStreamMess mess);
 
 }
\ No newline at end of file
@@ -8,6 +8,7 @@ import com.heima.model.common.dtos.ResponseResult;
 import com.heima.model.mess.ArticleVisitStreamMess;
 
 import java.io.IOException;
+import java.util.List;
 
 public interface ApArticleService extends IService<ApArticle> {
 
@@ -37,4 +38,14 @@ public interface ApArticleService extends IService<ApArticle> {
      * @param mess
      */
     public void updateScore(ArticleVisitStreamMess mess);
+    /**
+     * 批量更新文章的分值  同一文章的增量先合并，再以一次jdbc批量更新写入
+     * @param messList
+     */
+    public void updateScores(List<ArticleVisitStreamMess> messList);
+    /**
+     * 按流处理筛选出的高频文章的阅读增量更新热点排行，不写库，阅读数由updateScores精确写入
+     * @param messList
+     */
+    public void updateTrending(List<ArticleVisitStreamMess> messList);
 }
\ No newline at end of file
@@ -0,0 +1,35 @@
+package com.heima.article.service;
+
+import com.heima.model.article.dtos.ArticleHomeDto;
+import com.heima.model.article.pojos.ApArticle;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * 文章列表两级缓存，本地caffeine为一级，redis为二级
+ */
+public interface ArticleFeedCacheService {
+
+    /**
+     * 查询一页文章列表，两级缓存都未命中时通过loader查询数据库
+     * @param dto       已补全默认值的查询参数
+     * @param loadtype  1为加载更多  2为加载最新
+     * @param head      请求是否未带游标，未带游标的加载更多请求共用首页缓存
+     * @param loader    查询数据库
+     * @return
+     */
+    List<ApArticle> getFeed(ArticleHomeDto dto, Short loadtype, boolean head, Supplier<List<ApArticle>> loader);
+
+    /**
+     * 文章发布、修改或上下架后使频道和全部频道的列表缓存失效，有事务时在提交后执行
+     * @param channelId 频道id
+     */
+    void evict(Integer channelId);
+
+    /**
+     * 收到失效消息后清除本节点的一级缓存
+     * @param tag 频道id或__all__
+     */
+    void evictLocal(String tag);
+}
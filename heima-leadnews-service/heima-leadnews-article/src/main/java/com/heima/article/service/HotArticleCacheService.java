@@ -0,0 +1,66 @@
+package com.heima.article.service;
+
+import com.heima.model.article.pojos.ApArticle;
+import com.heima.model.article.vos.HotArticleVo;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 热点文章本地副本，每个节点保存各频道热点文章及序列化好的响应体，redis中版本号变化时刷新
+ */
+public interface HotArticleCacheService {
+
+    /**
+     * 获取频道热点文章的响应体
+     * @param tag 频道id或__all__
+     * @return 序列化好的ResponseResult，redis中没有该频道的热点文章时返回null
+     */
+    byte[] getFirstPageBody(String tag);
+
+    /**
+     * 获取频道热点文章列表
+     * @param tag 频道id或__all__
+     * @return redis中没有该频道的热点文章时返回null
+     */
+    List<HotArticleVo> getFirstPage(String tag);
+
+    /**
+     * 按当前时间累加文章在频道热点排行中的热度，热度随时间指数衰减
+     * @param tag             频道id或__all__
+     * @param hotArticleVo    文章卡片
+     * @param weight          热度增量，可以为负数
+     */
+    void incrScore(String tag, HotArticleVo hotArticleVo, int weight);
+
+    /**
+     * 校正各频道热点排行：移除衰减后热度过低的文章，并补入排行中没有的文章，所有频道一次提交
+     * @param articles    频道id或__all__ -> 候选文章，作为卡片写入
+     * @param scores      文章id -> 累计热度，按发布时间开始衰减
+     */
+    void reconcile(Map<String, List<ApArticle>> articles, Map<Long, Integer> scores);
+
+    /**
+     * 热度在time时刻产生时在排行中的分数，分数越大排名越靠前，不同时刻产生的热度可以直接比较
+     * @param score   热度
+     * @param time    热度产生的时间
+     * @return
+     */
+    double rankScore(int score, Date time);
+
+    /**
+     * 文章所属的地区、标签等维度的排行，由article.hot.dimensions配置，不包括频道和__all__
+     * @param apArticle 文章
+     * @return 各维度排行的tag
+     */
+    List<String> dimensionTags(ApArticle apArticle);
+
+    /**
+     * 维度和值对应的排行tag
+     * @param dimension 为空时按频道
+     * @param value     频道id或维度的值
+     * @return 维度未启用时返回null
+     */
+    String tag(String dimension, String value);
+}
@@ -3,12 +3,17 @@ package com.heima.article.service.impl;
 import com.baomidou.mybatisplus.core.toolkit.Wrappers;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.heima.article.mapper.ApArticleConfigMapper;
+import com.heima.article.mapper.ApArticleMapper;
 import com.heima.article.service.ApArticleConfigService;
+import com.heima.article.service.ArticleFeedCacheService;
+import com.heima.model.article.pojos.ApArticle;
 import com.heima.model.article.pojos.ApArticleConfig;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.Resource;
+import java.io.Serializable;
 import java.util.Map;
 
 @Service
@@ -16,6 +21,12 @@ import java.util.Map;
 @Transactional
 public class ApArticleConfigServiceImpl extends ServiceImpl<ApArticleConfigMapper, ApArticleConfig> implements ApArticleConfigService {
 
+    @Resource
+    private ApArticleMapper apArticleMapper;
+
+    @Resource
+    private ArticleFeedCacheService articleFeedCacheService;
+
     /**
      * 根据地图更新文章配置
      * @param map 包含更新信息的地图，应包含"enable"和"articleId"键
@@ -32,6 +43,12 @@ public class ApArticleConfigServiceImpl extends ServiceImpl<ApArticleConfigMappe
         // 更新文章配置的下架状态
         update(Wrappers.<ApArticleConfig>lambdaUpdate()
                 .eq(ApArticleConfig::getArticleId,map.get("articleId")).set(ApArticleConfig::getIsDown,isDown));
+        // 同步冗余在文章表中的下架状态，列表查询不再关联配置表
+        apArticleMapper.update(null, Wrappers.<ApArticle>lambdaUpdate()
+                .eq(ApArticle::getId,map.get("articleId")).setSql("is_down = " + (isDown ? 1 : 0)));
+        // 上下架后使列表缓存失效
+        ApArticle apArticle = apArticleMapper.selectById((Serializable) map.get("articleId"));
+        articleFeedCacheService.evict(apArticle == null ? null : apArticle.getChannelId());
     }
 
 }
\ No newline at end of file
@@ -1,15 +1,15 @@
 package com.heima.article.service.impl;
 
-import com.alibaba.fastjson.JSON;
 import com.baomidou.mybatisplus.core.toolkit.Wrappers;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.heima.article.mapper.ApArticleConfigMapper;
 import com.heima.article.mapper.ApArticleContentMapper;
 import com.heima.article.mapper.ApArticleMapper;
 import com.heima.article.service.ApArticleService;
+import com.heima.article.service.ArticleFeedCacheService;
 import com.heima.article.service.ArticleFreemarkerService;
+import com.heima.article.service.HotArticleCacheService;
 import com.heima.common.constants.ArticleConstants;
-import com.heima.common.redis.CacheService;
 import com.heima.model.article.dtos.ArticleDto;
 import com.heima.model.article.dtos.ArticleHomeDto;
 import com.heima.model.article.pojos.ApArticle;
@@ -24,14 +24,18 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.net.nntp.Article;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
 
 @Service
 @Transactional
@@ -43,7 +47,15 @@ public class ApArticleServiceImpl extends ServiceImpl<ApArticleMapper, ApArticle
     @Autowired
     private ApArticleMapper apArticleMapper;
     @Autowired
-    private CacheService cacheService;
+    private ArticleFeedCacheService articleFeedCacheService;
+    @Autowired
+    private HotArticleCacheService hotArticleCacheService;
+
+    /**
+     * 开启后阅读量对热度的贡献由高频文章流更新，精确增量只计算点赞、评论、收藏，避免重复累加
+     */
+    @Value("${article.hot.stream.heavy-hitter.enabled:false}")
+    private boolean heavyHitterEnabled;
 
     /**
      * 加载文章列表数据
@@ -66,11 +78,20 @@ public class ApArticleServiceImpl extends ServiceImpl<ApArticleMapper, ApArticle
                     loadtype=ArticleConstants.LOADTYPE_LOAD_MORE;
                 }
 
+                // 列表只按频道分页，地区、标签等维度的tag不是频道id，按全部频道加载，与首页一致
+                if(StringUtils.isNotBlank(dto.getDimension())){
+                    dto.setTag(ArticleConstants.DEFAULT_TAG);
+                    dto.setDimension(null);
+                }
+
                 // 设置查询类型，如果类型为空则默认查询所有类型的文章
                 if(StringUtils.isEmpty(dto.getTag())){
                     dto.setTag(ArticleConstants.DEFAULT_TAG);
                 }
 
+                // 未带游标的加载更多请求是首页，补全默认值前记录
+                boolean head = dto.getMinBehotTime()==null && dto.getMinBehotId()==null;
+
                 // 设置最大行为时间，默认为当前时间
                 if(dto.getMaxBehotTime()==null){
                     dto.setMaxBehotTime(new Date());
@@ -81,8 +102,10 @@ public class ApArticleServiceImpl extends ServiceImpl<ApArticleMapper, ApArticle
                     dto.setMinBehotTime(new Date());
                 }
 
-                // 执行文章列表查询并返回结果
-                List<ApArticle> apArticles = apArticleMapper.loadArticleList(dto, loadtype);
+                // 执行文章列表查询并返回结果，依次查询本地缓存、redis和数据库
+                Short type = loadtype;
+                List<ApArticle> apArticles = articleFeedCacheService.getFeed(dto, loadtype, head,
+                        () -> apArticleMapper.loadArticleList(dto, type));
                 ResponseResult responseResult = ResponseResult.okResult(apArticles);
                 return responseResult;
     }
@@ -129,6 +152,8 @@ public class ApArticleServiceImpl extends ServiceImpl<ApArticleMapper, ApArticle
             apArticleContent.setContent(dto.getContent());
             apArticleContentMapper.updateById(apArticleContent);
         }
+        // 文章发布或修改后使列表缓存失效
+        articleFeedCacheService.evict(apArticle.getChannelId());
         //异步调用 生成静态文件上传到minio中
          articleFreemarkerService.buildArticleToMinIO(apArticle,dto.getContent());
         return ResponseResult.okResult(apArticle.getId());
@@ -136,23 +161,22 @@ public class ApArticleServiceImpl extends ServiceImpl<ApArticleMapper, ApArticle
 
     /**
      * 加载文章列表数据
-     * @param dto 文章首页数据传输对象，包含标签等查询条件
+     * @param dto 文章首页数据传输对象，包含标签等查询条件，dimension不为空时首页读取对应维度的热点排行
      * @param type 文章类型标识
      * @param firstPage 是否为首页加载
      * @return 返回文章列表的响应结果
      */
     @Override
     public ResponseResult load2(ArticleHomeDto dto, Short type, boolean firstPage) {
-        // 如果是首页加载，优先从缓存中获取热门文章数据
+        // 如果是首页加载，优先从本地副本中获取热门文章数据
         if(firstPage){
-            String jsonStr = cacheService.get(ArticleConstants.HOT_ARTICLE_FIRST_PAGE + dto.getTag());
-            if(StringUtils.isNotBlank(jsonStr)){
-                List<HotArticleVo> hotArticleVoList = JSON.parseArray(jsonStr, HotArticleVo.class);
-                ResponseResult responseResult = ResponseResult.okResult(hotArticleVoList);
-                return responseResult;
+            List<HotArticleVo> hotArticleVoList = hotArticleCacheService.getFirstPage(
+                    hotArticleCacheService.tag(dto.getDimension(),dto.getTag()));
+            if(hotArticleVoList!=null){
+                return ResponseResult.okResult(hotArticleVoList);
             }
         }
-        // 缓存未命中或非首页加载时，调用load方法获取数据
+        // 缓存未命中或非首页加载时，调用load方法获取数据，地区、标签等维度没有排行时由load按全部频道加载
         return load(type,dto);
     }
 
@@ -162,115 +186,137 @@ public class ApArticleServiceImpl extends ServiceImpl<ApArticleMapper, ApArticle
      */
     @Override
     public void updateScore(ArticleVisitStreamMess mess) {
-        // 更新文章信息并获取文章对象
-        ApArticle article = updateArticle(mess);
-
-        // 计算文章基础热度分数
-        Integer score=computeScore(article);
-
-        // 将基础分数乘以权重系数3作为最终热度分数
-        score=score*3;
-
-        // 将文章数据和热度分数存储到Redis中，分别存储到频道页和默认标签页
-        replaceDataToRedis(article,score,ArticleConstants.HOT_ARTICLE_FIRST_PAGE+article.getChannelId());
-        replaceDataToRedis(article,score,ArticleConstants.HOT_ARTICLE_FIRST_PAGE+ArticleConstants.DEFAULT_TAG);
+        updateScores(Collections.singletonList(mess));
     }
 
-
     /**
-     * 更新文章的统计数据
-     *
-     * @param mess 包含文章访问信息的消息对象，包含文章ID、收藏数、评论数、点赞数和浏览数的增量
-     * @return 更新后的文章对象
+     * 批量更新文章热度分数
+     * 同一文章的多条消息先合并增量，每篇文章一条累加的update语句，通过jdbc批量提交；
+     * 再一次查询出更新后的文章作为卡片，事务提交后按增量累加热点排行中随时间衰减的热度；
+     * 开启高频文章流时阅读量只写库，不计入这里的热度增量
+     * @param messList 文章访问流消息列表
      */
-    private ApArticle updateArticle(ArticleVisitStreamMess mess) {
-        // 获取原始文章信息
-        ApArticle apArticle = getById(mess.getArticleId());
+    @Override
+    public void updateScores(List<ArticleVisitStreamMess> messList) {
+        Map<Long, ArticleVisitStreamMess> merged = mergeIncrements(messList);
+        if(merged.isEmpty()){
+            return;
+        }
+        // 更新文章的统计数据
+        String statement = ApArticleMapper.class.getName() + ".incrCounters";
+        executeBatch(merged.values(), (sqlSession, mess) -> sqlSession.update(statement, mess));
 
-        // 更新文章的各项统计数据，如果原数据为null则初始化为0，否则累加增量值
-        apArticle.setCollection(apArticle.getCollection()==null?0:apArticle.getCollection()+mess.getCollect());
-        apArticle.setComment(apArticle.getComment()==null?0:apArticle.getComment()+mess.getComment());
-        apArticle.setLikes(apArticle.getLikes()==null?0:apArticle.getLikes()+mess.getLike());
-        apArticle.setViews(apArticle.getViews()==null?0:apArticle.getViews()+mess.getView());
+        // 计算本次增量对应的热度，只有阅读的文章热度不变，不再查询
+        Map<Long, Integer> weights = new LinkedHashMap<>();
+        for (ArticleVisitStreamMess mess : merged.values()) {
+            int weight = computeScore(mess,!heavyHitterEnabled);
+            if(weight!=0){
+                weights.put(mess.getArticleId(),weight);
+            }
+        }
+        if(weights.isEmpty()){
+            return;
+        }
+        List<ApArticle> articles = listByIds(weights.keySet());
+        // 排行的累加不是幂等的，统计数据提交后再累加，提交失败时消息重新投递不会重复计入热度
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    incrHotScores(articles,weights);
+                }
+            });
+        }else {
+            incrHotScores(articles,weights);
+        }
+    }
 
-        // 保存更新后的文章信息
-        updateById(apArticle);
-        return apArticle;
+    private void incrHotScores(List<ApArticle> articles, Map<Long, Integer> weights) {
+        for (ApArticle article : articles) {
+            incrHotScore(article,weights.get(article.getId()));
+        }
     }
 
     /**
-     * 计算文章热度得分
-     * @param apArticle 文章对象，包含点赞数、浏览量、评论数、收藏数等信息
-     * @return 返回计算后的文章热度得分，基于点赞、浏览、评论、收藏等权重计算得出
+     * 按高频文章的阅读增量更新热点排行
+     * 文章由流处理中的Count-Min Sketch筛选，增量是进入跟踪后精确累加的阅读数，只读取文章作为卡片，不写库
+     * @param messList 高频文章阅读增量消息列表
      */
-    private Integer computeScore(ApArticle apArticle){
-        Integer score=0;
-        // 根据点赞数和点赞权重计算得分
-        if(apArticle.getLikes()!=null){
-            score+=apArticle.getLikes()* ArticleConstants.HOT_ARTICLE_LIKE_WEIGHT;
-        }
-        // 根据浏览量计算得分
-        if(apArticle.getViews()!=null){
-            score+=apArticle.getViews();
-        }
-        // 根据评论数和评论权重计算得分
-        if(apArticle.getComment()!=null){
-            score+=apArticle.getComment()* ArticleConstants.HOT_ARTICLE_COMMENT_WEIGHT;
+    @Override
+    public void updateTrending(List<ArticleVisitStreamMess> messList) {
+        Map<Long, ArticleVisitStreamMess> merged = mergeIncrements(messList);
+        if(merged.isEmpty()){
+            return;
         }
-        // 根据收藏数和收藏权重计算得分
-        if (apArticle.getCollection()!=null){
-            score+=apArticle.getCollection()* ArticleConstants.HOT_ARTICLE_COLLECTION_WEIGHT;
+        for (ApArticle article : listByIds(merged.keySet())) {
+            incrHotScore(article,merged.get(article.getId()).getView());
         }
-        return score;
     }
+
     /**
-     * 将文章数据更新到Redis缓存中
-     * @param apArticle 需要更新的文章对象
-     * @param score 文章的热度分数
-     * @param s Redis中存储的键名
+     * 累加到频道页、默认标签页以及地区、标签等维度的热点排行中
+     * @param article 文章
+     * @param weight 热度增量
      */
-    private void replaceDataToRedis(ApArticle apArticle, Integer score, String s) {
-        String articleListStr = cacheService.get(s);
-        if(StringUtils.isNotBlank(articleListStr)){
-            List<HotArticleVo> hotArticleVos = JSON.parseArray(articleListStr, HotArticleVo.class);
-            boolean flag=true;
-
-            // 遍历热门文章列表，查找是否已存在该文章
-            for(HotArticleVo hotArticleVo:hotArticleVos){
-                if(hotArticleVo.getId().equals(apArticle.getId())){
-                    hotArticleVo.setScore(score);
-                    flag=false;
-                    break;
-                }
-            }
+    private void incrHotScore(ApArticle article, int weight) {
+        replaceDataToRedis(article,weight,String.valueOf(article.getChannelId()));
+        replaceDataToRedis(article,weight,ArticleConstants.DEFAULT_TAG);
+        for (String tag : hotArticleCacheService.dimensionTags(article)) {
+            replaceDataToRedis(article,weight,tag);
+        }
+    }
 
-            // 如果文章不存在于热门列表中，需要添加新文章
-            if ( flag){
-                if(hotArticleVos.size()>=30){
-                    // 当热门文章列表已满时，按分数排序并替换最低分文章
-                    hotArticleVos=hotArticleVos.stream().sorted(Comparator.comparing(HotArticleVo::getScore).reversed()).collect(Collectors.toList());
-                    HotArticleVo lastHot = hotArticleVos.get(hotArticleVos.size() - 1);
-                    if (score > lastHot.getScore()){
-                        hotArticleVos.remove(lastHot);
-                        HotArticleVo hotArticleVo = new HotArticleVo();
-                        BeanUtils.copyProperties(apArticle,hotArticleVo);
-                        hotArticleVo.setScore(score);
-                        hotArticleVos.add(hotArticleVo);
-                    }
-                }else {
-                    // 当热门文章列表未满时，直接添加新文章
-                    HotArticleVo hotArticleVo = new HotArticleVo();
-                    BeanUtils.copyProperties(apArticle,hotArticleVo);
-                    hotArticleVo.setScore(score);
-                    hotArticleVos.add(hotArticleVo);
-                }
+    /**
+     * 按文章id合并增量
+     * @param messList 文章访问流消息列表
+     * @return 文章id -> 合并后的增量
+     */
+    private Map<Long, ArticleVisitStreamMess> mergeIncrements(List<ArticleVisitStreamMess> messList) {
+        Map<Long, ArticleVisitStreamMess> merged = new LinkedHashMap<>();
+        if(messList==null){
+            return merged;
+        }
+        for (ArticleVisitStreamMess mess : messList) {
+            if(mess==null||mess.getArticleId()==null){
+                continue;
             }
-
-            // 按分数降序排序并更新Redis缓存
-            hotArticleVos=hotArticleVos.stream().sorted(Comparator.comparing(HotArticleVo::getScore).reversed()).collect(Collectors.toList());
-            cacheService.set(s,JSON.toJSONString(hotArticleVos));
+            ArticleVisitStreamMess total = merged.computeIfAbsent(mess.getArticleId(), id -> {
+                ArticleVisitStreamMess m = new ArticleVisitStreamMess();
+                m.setArticleId(id);
+                return m;
+            });
+            total.setCollect(total.getCollect()+mess.getCollect());
+            total.setComment(total.getComment()+mess.getComment());
+            total.setLike(total.getLike()+mess.getLike());
+            total.setView(total.getView()+mess.getView());
         }
+        return merged;
+    }
+
+    /**
+     * 计算文章热度增量
+     * @param mess 合并后的文章行为增量
+     * @param includeViews 是否计入阅读量
+     * @return 基于点赞、浏览、评论、收藏等权重计算的热度增量
+     */
+    private int computeScore(ArticleVisitStreamMess mess, boolean includeViews){
+        return mess.getLike()* ArticleConstants.HOT_ARTICLE_LIKE_WEIGHT
+                + (includeViews ? mess.getView() : 0)
+                + mess.getComment()* ArticleConstants.HOT_ARTICLE_COMMENT_WEIGHT
+                + mess.getCollect()* ArticleConstants.HOT_ARTICLE_COLLECTION_WEIGHT;
+    }
 
+    /**
+     * 将文章数据更新到Redis缓存中
+     * 频道排行为zset，一次原子的脚本调用完成热度累加和裁剪，并发更新不会互相覆盖
+     * @param apArticle 需要更新的文章对象
+     * @param weight 热度增量
+     * @param tag 频道id或__all__
+     */
+    private void replaceDataToRedis(ApArticle apArticle, int weight, String tag) {
+        HotArticleVo hotArticleVo = new HotArticleVo();
+        BeanUtils.copyProperties(apArticle,hotArticleVo);
+        hotArticleCacheService.incrScore(tag,hotArticleVo,weight);
     }
 
 }
@@ -0,0 +1,162 @@
+package com.heima.article.service.impl;
+
+import com.alibaba.fastjson.JSON;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.heima.article.service.ArticleFeedCacheService;
+import com.heima.common.constants.ArticleConstants;
+import com.heima.common.redis.CacheService;
+import com.heima.model.article.dtos.ArticleHomeDto;
+import com.heima.model.article.pojos.ApArticle;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 文章列表两级缓存
+ * 缓存键为(频道, 加载类型, 游标, 分页大小)。游标分页下同一频道每一页的游标对所有用户都相同，
+ * 从首页开始翻页的请求会命中同一组缓存；只有未带游标的加载更多请求视为首页，共用head游标，
+ * 带游标的请求按游标本身作为键，不会拿到按其他请求的游标查询的首页。
+ * 一级缓存按频道通过kafka广播失效；二级缓存的键带频道版本号，失效时递增版本号，旧键自然过期
+ */
+@Service
+@Slf4j
+public class ArticleFeedCacheServiceImpl implements ArticleFeedCacheService {
+
+    private static final String HEAD_CURSOR = "head";
+
+    @Resource
+    private CacheService cacheService;
+
+    @Resource
+    private KafkaTemplate<String, String> kafkaTemplate;
+
+    /**
+     * 一级缓存过期时间，兜底失效消息丢失的情况，秒
+     */
+    @Value("${article.feed.cache.local-ttl-seconds:5}")
+    private long localTtlSeconds;
+
+    @Value("${article.feed.cache.local-max-size:10000}")
+    private long localMaxSize;
+
+    /**
+     * 二级缓存过期时间，秒
+     */
+    @Value("${article.feed.cache.redis-ttl-seconds:60}")
+    private long redisTtlSeconds;
+
+    private Cache<String, List<ApArticle>> localCache;
+
+    @PostConstruct
+    public void init() {
+        localCache = Caffeine.newBuilder()
+                .maximumSize(localMaxSize)
+                .expireAfterWrite(localTtlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * 查询一页文章列表
+     * 同一节点上相同键的并发未命中只有一个线程访问redis和数据库
+     * @param dto       已补全默认值的查询参数
+     * @param loadtype  1为加载更多  2为加载最新
+     * @param head      请求是否未带游标
+     * @param loader    查询数据库
+     * @return
+     */
+    @Override
+    public List<ApArticle> getFeed(ArticleHomeDto dto, Short loadtype, boolean head, Supplier<List<ApArticle>> loader) {
+        String key = dto.getTag() + "_" + loadtype + "_" + cursor(dto, loadtype, head) + "_" + dto.getSize();
+        return localCache.get(key, k -> loadFromRedis(dto.getTag(), k, loader));
+    }
+
+    private List<ApArticle> loadFromRedis(String tag, String key, Supplier<List<ApArticle>> loader) {
+        try {
+            String version = cacheService.get(ArticleConstants.FEED_VERSION + tag);
+            String redisKey = ArticleConstants.FEED_PAGE + key + "_" + (version == null ? "0" : version);
+            String jsonStr = cacheService.get(redisKey);
+            if (StringUtils.isNotBlank(jsonStr)) {
+                return JSON.parseArray(jsonStr, ApArticle.class);
+            }
+            List<ApArticle> apArticles = loader.get();
+            cacheService.setEx(redisKey, JSON.toJSONString(apArticles), redisTtlSeconds, TimeUnit.SECONDS);
+            return apArticles;
+        } catch (Exception e) {
+            // redis不可用时直接查询数据库
+            log.error("load feed from redis exception, key={}", key, e);
+            List<ApArticle> apArticles = loader.get();
+            return apArticles == null ? Collections.emptyList() : apArticles;
+        }
+    }
+
+    /**
+     * 计算游标部分的缓存键
+     * @param dto
+     * @param loadtype
+     * @param head
+     * @return
+     */
+    private String cursor(ArticleHomeDto dto, Short loadtype, boolean head) {
+        if (ArticleConstants.LOADTYPE_LOAD_MORE.equals(loadtype)) {
+            if (head) {
+                return HEAD_CURSOR;
+            }
+            return dto.getMinBehotTime().getTime() + "-" + dto.getMinBehotId();
+        }
+        return dto.getMaxBehotTime().getTime() + "-" + dto.getMaxBehotId();
+    }
+
+    /**
+     * 使频道和全部频道的列表缓存失效
+     * 递增二级缓存版本号后广播失效消息，有事务时在提交后执行，避免失效后又缓存了提交前的数据
+     * @param channelId 频道id
+     */
+    @Override
+    public void evict(Integer channelId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    doEvict(channelId);
+                }
+            });
+        } else {
+            doEvict(channelId);
+        }
+    }
+
+    private void doEvict(Integer channelId) {
+        try {
+            if (channelId != null) {
+                cacheService.incrBy(ArticleConstants.FEED_VERSION + channelId, 1);
+                kafkaTemplate.send(ArticleConstants.ARTICLE_FEED_INVALIDATE_TOPIC, String.valueOf(channelId));
+            }
+            cacheService.incrBy(ArticleConstants.FEED_VERSION + ArticleConstants.DEFAULT_TAG, 1);
+            kafkaTemplate.send(ArticleConstants.ARTICLE_FEED_INVALIDATE_TOPIC, ArticleConstants.DEFAULT_TAG);
+        } catch (Exception e) {
+            log.error("evict feed cache exception, channelId={}", channelId, e);
+        }
+    }
+
+    /**
+     * 清除本节点某个频道的一级缓存
+     * @param tag 频道id或__all__
+     */
+    @Override
+    public void evictLocal(String tag) {
+        String prefix = tag + "_";
+        localCache.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+}
@@ -0,0 +1,336 @@
+package com.heima.article.service.impl;
+
+import com.alibaba.fastjson.JSON;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.heima.article.service.HotArticleCacheService;
+import com.heima.common.constants.ArticleConstants;
+import com.heima.common.redis.CacheService;
+import com.heima.model.article.pojos.ApArticle;
+import com.heima.model.article.vos.HotArticleVo;
+import com.heima.model.common.dtos.ResponseResult;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * 热点文章排行及本地副本
+ * 每个频道的排行存放在zset(文章id -> 分数)中，文章卡片存放在同频道的hash中，更新分数是一次原子的脚本调用；
+ * 热度按半衰期指数衰减，采用前向衰减：t时刻的增量w记为w*e^(λ(t-DECAY_EPOCH))，各文章的分数同比例衰减，
+ * 排序不随时间变化，无需定时重算；zset中保存其对数，避免数值随时间溢出，展示时再换算为当前时刻的热度；
+ * 首页请求直接返回本地序列化好的响应体，不访问redis也不做json转换；
+ * 定时通过一次multiGet比较各频道的版本号，只有版本号变化的频道才重新读取和序列化；
+ * 本地副本只保存redis中有排行的tag，数量不超过local-max-size，请求中任意的tag不会占用内存；
+ * 地区、标签等维度的排行与频道排行共用同一套key，tag为"维度_值"，如province_11、label_科技
+ */
+@Service
+@Slf4j
+public class HotArticleCacheServiceImpl implements HotArticleCacheService {
+
+    /**
+     * 衰减的时间起点，2020-01-01 00:00:00 +08:00
+     */
+    private static final long DECAY_EPOCH = 1577808000000L;
+
+    private static final Set<String> SUPPORTED_DIMENSIONS =
+            new HashSet<>(Arrays.asList("province", "city", "county", "label"));
+
+    @Resource
+    private CacheService cacheService;
+
+    /**
+     * 热度半衰期，小时；zset中的分数依赖该值，修改后需删除排行由校正任务重新补入
+     */
+    @Value("${article.hot.half-life-hours:24}")
+    private double halfLifeHours;
+
+    /**
+     * 衰减后热度低于该值的文章在校正时移出排行
+     */
+    @Value("${article.hot.min-score:1}")
+    private double minScore;
+
+    /**
+     * 除频道外额外维护排行的维度，可选province、city、county、label，逗号分隔
+     */
+    @Value("${article.hot.dimensions:}")
+    private Set<String> dimensions;
+
+    /**
+     * 与mvc使用同一个ObjectMapper，响应体与直接返回ResponseResult时一致
+     */
+    @Resource
+    private ObjectMapper objectMapper;
+
+    /**
+     * 本地副本最多保存的tag数
+     */
+    @Value("${article.hot.local-max-size:1000}")
+    private long localMaxSize;
+
+    private Cache<String, Entry> entries;
+
+    @PostConstruct
+    public void init() {
+        entries = Caffeine.newBuilder()
+                .maximumSize(localMaxSize)
+                .build();
+        Set<String> enabled = new HashSet<>();
+        for (String dimension : dimensions) {
+            if (SUPPORTED_DIMENSIONS.contains(dimension.trim())) {
+                enabled.add(dimension.trim());
+            } else if (StringUtils.isNotBlank(dimension)) {
+                log.warn("unsupported hot article dimension: {}", dimension);
+            }
+        }
+        dimensions = enabled;
+    }
+
+    @Override
+    public byte[] getFirstPageBody(String tag) {
+        Entry entry = entry(tag);
+        return entry == null ? null : entry.body;
+    }
+
+    @Override
+    public List<HotArticleVo> getFirstPage(String tag) {
+        Entry entry = entry(tag);
+        return entry == null ? null : entry.hotArticleVos;
+    }
+
+    /**
+     * 按当前时间累加文章热度，排行只保留分数最高的HOT_ARTICLE_CANDIDATE_SIZE篇
+     * @param tag             频道id或__all__
+     * @param hotArticleVo    文章卡片
+     * @param weight          热度增量，可以为负数
+     */
+    @Override
+    public void incrScore(String tag, HotArticleVo hotArticleVo, int weight) {
+        if (weight == 0) {
+            return;
+        }
+        cacheService.zLogAddWithHashAndTrim(ArticleConstants.HOT_ARTICLE_RANK + tag, ArticleConstants.HOT_ARTICLE_CARDS + tag,
+                ArticleConstants.HOT_ARTICLE_VERSION + tag, String.valueOf(hotArticleVo.getId()),
+                logScore(Math.abs(weight), System.currentTimeMillis()), weight < 0,
+                JSON.toJSONString(hotArticleVo), ArticleConstants.HOT_ARTICLE_CANDIDATE_SIZE);
+    }
+
+    /**
+     * 移除衰减后热度低于min-score的文章，再补入排行中没有的候选文章
+     * 候选文章的累计热度视为发布时产生，已在排行中的文章以流式累计的分数为准；
+     * 每个频道一次脚本调用，通过管道一次提交，耗时不随频道数增加
+     * @param articles    频道id或__all__ -> 候选文章
+     * @param scores      文章id -> 累计热度
+     */
+    @Override
+    public void reconcile(Map<String, List<ApArticle>> articles, Map<Long, Integer> scores) {
+        long now = System.currentTimeMillis();
+        Map<String, Map<String, Double>> rankScores = new HashMap<>();
+        Map<String, Map<String, String>> cards = new HashMap<>();
+        // 同一篇文章出现在所属频道和__all__中，卡片只序列化一次
+        Map<Long, String> cardJsons = new HashMap<>();
+        for (Map.Entry<String, List<ApArticle>> entry : articles.entrySet()) {
+            Map<String, Double> tagScores = new HashMap<>();
+            Map<String, String> tagCards = new HashMap<>();
+            for (ApArticle article : entry.getValue()) {
+                Integer score = scores.get(article.getId());
+                if (score == null || score <= 0) {
+                    continue;
+                }
+                String member = String.valueOf(article.getId());
+                long time = article.getPublishTime() == null ? now : article.getPublishTime().getTime();
+                tagScores.put(member, logScore(score, time));
+                tagCards.put(member, cardJsons.computeIfAbsent(article.getId(), id -> JSON.toJSONString(article)));
+            }
+            rankScores.put(entry.getKey(), tagScores);
+            cards.put(entry.getKey(), tagCards);
+        }
+        if (rankScores.isEmpty()) {
+            return;
+        }
+        cacheService.zReconcileWithHashPipeline(ArticleConstants.HOT_ARTICLE_RANK, ArticleConstants.HOT_ARTICLE_CARDS,
+                ArticleConstants.HOT_ARTICLE_VERSION, logScore(minScore, now), rankScores, cards,
+                ArticleConstants.HOT_ARTICLE_CANDIDATE_SIZE);
+    }
+
+    @Override
+    public double rankScore(int score, Date time) {
+        return logScore(score, time == null ? System.currentTimeMillis() : time.getTime());
+    }
+
+    @Override
+    public List<String> dimensionTags(ApArticle apArticle) {
+        if (dimensions.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> tags = new ArrayList<>();
+        if (dimensions.contains("province") && apArticle.getProvinceId() != null) {
+            tags.add("province_" + apArticle.getProvinceId());
+        }
+        if (dimensions.contains("city") && apArticle.getCityId() != null) {
+            tags.add("city_" + apArticle.getCityId());
+        }
+        if (dimensions.contains("county") && apArticle.getCountyId() != null) {
+            tags.add("county_" + apArticle.getCountyId());
+        }
+        if (dimensions.contains("label") && StringUtils.isNotBlank(apArticle.getLabels())) {
+            for (String label : apArticle.getLabels().split(",")) {
+                if (StringUtils.isNotBlank(label)) {
+                    tags.add("label_" + label.trim());
+                }
+            }
+        }
+        return tags;
+    }
+
+    @Override
+    public String tag(String dimension, String value) {
+        if (StringUtils.isBlank(dimension)) {
+            return value;
+        }
+        if (!dimensions.contains(dimension) || StringUtils.isBlank(value)) {
+            return null;
+        }
+        return dimension + "_" + value;
+    }
+
+    /**
+     * 热度score在time时刻产生时，zset中对应的对数分数
+     */
+    private double logScore(double score, long time) {
+        return Math.log(score) + decayRate() * (time - DECAY_EPOCH);
+    }
+
+    /**
+     * 将zset中的对数分数换算为now时刻衰减后的热度
+     */
+    private int decayedScore(double logScore, long now) {
+        return (int) Math.round(Math.exp(logScore - decayRate() * (now - DECAY_EPOCH)));
+    }
+
+    /**
+     * 每毫秒的衰减系数λ
+     */
+    private double decayRate() {
+        return Math.log(2) / (halfLifeHours * 3600000D);
+    }
+
+    /**
+     * 比较redis中的版本号，刷新发生变化的频道，排行已清空的频道移出本地副本
+     */
+    @Scheduled(fixedDelayString = "${article.hot.local-refresh-interval:1000}")
+    public void refresh() {
+        Map<String, Entry> map = entries.asMap();
+        if (map.isEmpty()) {
+            return;
+        }
+        try {
+            List<String> tags = new ArrayList<>(map.keySet());
+            List<String> versionKeys = new ArrayList<>(tags.size());
+            for (String tag : tags) {
+                versionKeys.add(ArticleConstants.HOT_ARTICLE_VERSION + tag);
+            }
+            List<String> versions = cacheService.multiGet(versionKeys);
+            for (int i = 0; i < tags.size(); i++) {
+                String tag = tags.get(i);
+                String version = versions.get(i);
+                Entry entry = map.get(tag);
+                if (entry != null && !Objects.equals(entry.version, version)) {
+                    Entry loaded = load(tag, version);
+                    if (loaded != null) {
+                        map.put(tag, loaded);
+                    } else {
+                        map.remove(tag);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("refresh hot article local cache exception", e);
+        }
+    }
+
+    private Entry entry(String tag) {
+        if (StringUtils.isBlank(tag)) {
+            return null;
+        }
+        Entry entry = entries.getIfPresent(tag);
+        if (entry != null) {
+            return entry;
+        }
+        try {
+            // 首次访问的频道同步加载，之后由refresh维护；没有排行时返回null不缓存，由调用方回退到普通列表
+            return entries.get(tag, t -> load(t, cacheService.get(ArticleConstants.HOT_ARTICLE_VERSION + t)));
+        } catch (Exception e) {
+            log.error("load hot article exception, tag={}", tag, e);
+            return null;
+        }
+    }
+
+    /**
+     * 先读版本号再读数据，读取期间发生的写入最多导致下次刷新时多加载一次，不会漏掉
+     * 展示的热度为加载时刻衰减后的值，排序不受影响
+     * @return 没有排行时返回null
+     */
+    private Entry load(String tag, String version) {
+        Set<ZSetOperations.TypedTuple<String>> rank = cacheService.zReverseRangeWithScores(
+                ArticleConstants.HOT_ARTICLE_RANK + tag, 0, ArticleConstants.HOT_ARTICLE_SIZE - 1);
+        if (rank == null || rank.isEmpty()) {
+            return null;
+        }
+        List<Object> members = new ArrayList<>(rank.size());
+        for (ZSetOperations.TypedTuple<String> tuple : rank) {
+            members.add(tuple.getValue());
+        }
+        List<Object> cards = cacheService.hMultiGet(ArticleConstants.HOT_ARTICLE_CARDS + tag, members);
+        List<HotArticleVo> list = new ArrayList<>(rank.size());
+        long now = System.currentTimeMillis();
+        int i = 0;
+        for (ZSetOperations.TypedTuple<String> tuple : rank) {
+            Object card = cards.get(i++);
+            // 两次读取之间被挤出排行的文章没有卡片，跳过
+            if (card == null) {
+                continue;
+            }
+            HotArticleVo hotArticleVo = JSON.parseObject(card.toString(), HotArticleVo.class);
+            hotArticleVo.setScore(tuple.getScore() == null ? 0 : decayedScore(tuple.getScore(), now));
+            list.add(hotArticleVo);
+        }
+        List<HotArticleVo> hotArticleVos = Collections.unmodifiableList(list);
+        try {
+            byte[] body = objectMapper.writeValueAsBytes(ResponseResult.okResult(hotArticleVos));
+            return new Entry(version, hotArticleVos, body);
+        } catch (Exception e) {
+            log.error("serialize hot article exception, tag={}", tag, e);
+            return new Entry(version, hotArticleVos, null);
+        }
+    }
+
+    private static class Entry {
+        private final String version;
+        private final List<HotArticleVo> hotArticleVos;
+        private final byte[] body;
+
+        private Entry(String version, List<HotArticleVo> hotArticleVos, byte[] body) {
+            this.version = version;
+            this.hotArticleVos = hotArticleVos;
+            this.body = body;
+        }
+    }
+}
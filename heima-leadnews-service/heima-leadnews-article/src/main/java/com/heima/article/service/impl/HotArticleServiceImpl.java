@@ -3,29 +3,31 @@ package com.heima.article.service.impl;
 import com.alibaba.fastjson.JSON;
 import com.heima.apis.wemedia.IWemediaClient;
 import com.heima.article.mapper.ApArticleMapper;
+import com.heima.article.service.HotArticleCacheService;
 import com.heima.article.service.HotArticleService;
 import com.heima.common.constants.ArticleConstants;
-import com.heima.common.redis.CacheService;
 import com.heima.model.article.pojos.ApArticle;
-import com.heima.model.article.vos.HotArticleVo;
 import com.heima.model.common.dtos.ResponseResult;
 import com.heima.model.wemedia.pojos.WmChannel;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.beanutils.BeanUtils;
+import org.apache.ibatis.cursor.Cursor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import javax.annotation.Resource;
-import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
 import java.time.LocalDate;
-import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 @Service
 @Slf4j
@@ -33,88 +35,122 @@ import java.util.stream.Collectors;
 public class HotArticleServiceImpl implements HotArticleService {
     @Autowired
     private ApArticleMapper apArticleMapper;
+
+    @Autowired
+    private IWemediaClient wemediaClient;
+
+    @Autowired
+    private HotArticleCacheService hotArticleCacheService;
+
     /**
-     * 计算热门文章并缓存到Redis中
-     * 该方法会获取最近5天的文章数据，计算热度后将结果存储到Redis缓存中
+     * 校正热门文章排行
+     * 排行中的热度由行为流实时累加并随时间衰减，这里只移除衰减后热度过低的文章，
+     * 并用最近5天的文章补入排行中没有的文章，用于冷启动和流处理中断后的恢复；
+     * 文章通过游标逐行读取，每个频道及维度值只保留热度最高的HOT_ARTICLE_CANDIDATE_SIZE篇，内存占用与文章总数无关
      */
     @Override
     public void computeHotArticle() {
         // 计算5天前的日期作为查询起始时间
-        LocalDate localDate = LocalDate.of(2020, 9, 10).minusDays(5);
+        LocalDate localDate = LocalDate.now().minusDays(5);
 
-        // 查询最近5天的文章列表
-        List<ApArticle> apArticleList = apArticleMapper.findArticleListByLast5days(Date.from(localDate.atStartOfDay().atZone(ZoneId.systemDefault()).toInstant()));
+        // 每个频道一个按热度排序的小顶堆，全部频道使用__all__
+        Map<String, PriorityQueue<Candidate>> heaps = new LinkedHashMap<>();
+        for (Integer channelId : channelIds()) {
+            heaps.put(String.valueOf(channelId), newHeap());
+        }
+        heaps.put(ArticleConstants.DEFAULT_TAG, newHeap());
 
-        // 计算文章热度值
-        List<HotArticleVo> hotArticleVoList = null;
-        try {
-            hotArticleVoList = computeHotArticle(apArticleList);
-        } catch (InvocationTargetException | IllegalAccessException e) {
+        // 流式读取最近5天文章的计分列，逐行计算热度并放入对应频道的堆
+        Date dayParam = Date.from(localDate.atStartOfDay().atZone(ZoneId.systemDefault()).toInstant());
+        try (Cursor<ApArticle> cursor = apArticleMapper.scanHotArticleCandidates(dayParam)) {
+            for (ApArticle apArticle : cursor) {
+                int score = computeScore(apArticle);
+                if (score <= 0) {
+                    continue;
+                }
+                Candidate candidate = new Candidate(apArticle.getId(), score,
+                        hotArticleCacheService.rankScore(score, apArticle.getPublishTime()));
+                offer(heaps.get(String.valueOf(apArticle.getChannelId())), candidate);
+                offer(heaps.get(ArticleConstants.DEFAULT_TAG), candidate);
+                // 地区、标签等维度的堆按出现的值创建
+                for (String tag : hotArticleCacheService.dimensionTags(apArticle)) {
+                    offer(heaps.computeIfAbsent(tag, t -> newHeap()), candidate);
+                }
+            }
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
-        // 将热门文章缓存到Redis中
-        cacheTagToRedis(hotArticleVoList);
-    }
+        // 游标关闭后再按id查询入选文章的完整数据作为卡片
+        Set<Long> ids = new HashSet<>();
+        for (PriorityQueue<Candidate> heap : heaps.values()) {
+            for (Candidate candidate : heap) {
+                ids.add(candidate.id);
+            }
+        }
+        Map<Long, ApArticle> articles = new HashMap<>();
+        if (!ids.isEmpty()) {
+            for (ApArticle apArticle : apArticleMapper.selectBatchIds(ids)) {
+                articles.put(apArticle.getId(), apArticle);
+            }
+        }
 
-    @Autowired
-    private IWemediaClient wemediaClient;
+        // 所有频道的排行一次提交校正，并递增版本号通知各节点刷新本地副本
+        Map<String, List<ApArticle>> candidates = new LinkedHashMap<>();
+        Map<Long, Integer> scores = new HashMap<>();
+        for (Map.Entry<String, PriorityQueue<Candidate>> entry : heaps.entrySet()) {
+            List<ApArticle> list = new ArrayList<>(entry.getValue().size());
+            for (Candidate candidate : entry.getValue()) {
+                ApArticle apArticle = articles.get(candidate.id);
+                if (apArticle != null) {
+                    list.add(apArticle);
+                    scores.put(candidate.id, candidate.score);
+                }
+            }
+            candidates.put(entry.getKey(), list);
+        }
+        hotArticleCacheService.reconcile(candidates, scores);
+    }
 
-    @Autowired
-    private CacheService cacheService;
     /**
-     * 将热门文章列表按照频道分类缓存到Redis中
-     * @param hotArticleVoList 热门文章列表
+     * 查询所有频道id，查询失败时只校正__all__
+     * @return
      */
-    private void cacheTagToRedis(List<HotArticleVo> hotArticleVoList) {
-        // 获取所有频道信息
+    private List<Integer> channelIds() {
+        List<Integer> channelIds = new ArrayList<>();
         ResponseResult responseResult = wemediaClient.getChannels();
-        if(responseResult.getCode().equals(200)){
+        if (responseResult.getCode().equals(200)) {
             String channelJson = JSON.toJSONString(responseResult.getData());
             List<WmChannel> wmChannels = JSON.parseArray(channelJson, WmChannel.class);
-            // 遍历所有频道，将对应频道的文章进行排序并缓存
-            if(wmChannels!=null&&wmChannels.size()>0){
-                for(WmChannel wmChannel:wmChannels){
-                    List<HotArticleVo> hotArticleVos = hotArticleVoList.stream().filter(x -> x.getChannelId().equals(wmChannel.getId())).collect(Collectors.toList());
-                    sortAndCache(hotArticleVos,ArticleConstants.HOT_ARTICLE_FIRST_PAGE+wmChannel.getId());
+            if (wmChannels != null) {
+                for (WmChannel wmChannel : wmChannels) {
+                    channelIds.add(wmChannel.getId());
                 }
             }
         }
-        // 缓存默认标签的热门文章
-        sortAndCache(hotArticleVoList,ArticleConstants.HOT_ARTICLE_FIRST_PAGE+ArticleConstants.DEFAULT_TAG);
+        return channelIds;
     }
 
+    private PriorityQueue<Candidate> newHeap() {
+        return new PriorityQueue<>(ArticleConstants.HOT_ARTICLE_CANDIDATE_SIZE + 1,
+                Comparator.comparingDouble(candidate -> candidate.rankScore));
+    }
 
-        /**
-     * 对热门文章列表进行排序并缓存
-     * @param hotArticleVos 热门文章列表
-     * @param key 缓存键值
+    /**
+     * 放入堆中，超过候选数时移除热度最低的文章
+     * @param heap 频道的堆，不在频道列表中的频道为null
+     * @param candidate
      */
-    private void sortAndCache(List<HotArticleVo> hotArticleVos, String key) {
-        // 按照文章评分降序排序
-        hotArticleVos=hotArticleVos.stream().sorted(Comparator
-                .comparing(HotArticleVo::getScore).reversed()).collect(Collectors.toList());
-        // 如果文章数量超过30条，只保留前30条
-        if (hotArticleVos.size()>30){
-            hotArticleVos=hotArticleVos.subList(0,30);
+    private void offer(PriorityQueue<Candidate> heap, Candidate candidate) {
+        if (heap == null) {
+            return;
         }
-        // 将排序后的文章列表缓存到redis中
-        cacheService.set(key,JSON.toJSONString(hotArticleVos));
-    }
-
-
-    private List<HotArticleVo> computeHotArticle(List<ApArticle> apArticleList) throws InvocationTargetException, IllegalAccessException {
-        ArrayList<HotArticleVo> hotArticleVoList = new ArrayList<>();
-        if (apArticleList != null&&apArticleList.size()>0){
-            for (ApArticle apArticle : apArticleList) {
-                HotArticleVo hot = new HotArticleVo();
-                BeanUtils.copyProperties(apArticle,hot);
-                Integer score=computeScore(apArticle);
-                hot.setScore(score);
-                hotArticleVoList.add(hot);
-            }
+        if (heap.size() < ArticleConstants.HOT_ARTICLE_CANDIDATE_SIZE) {
+            heap.offer(candidate);
+        } else if (heap.peek().rankScore < candidate.rankScore) {
+            heap.poll();
+            heap.offer(candidate);
         }
-        return hotArticleVoList;
     }
 
     /**
@@ -123,8 +159,8 @@ public class HotArticleServiceImpl implements HotArticleService {
      * @param apArticle 文章对象，包含各种互动数据
      * @return 计算得出的文章热度得分
      */
-    private Integer computeScore(ApArticle apArticle) {
-        Integer score = 0;
+    private int computeScore(ApArticle apArticle) {
+        int score = 0;
         // 计算点赞数得分
         if(apArticle.getLikes()!=null){
             score+=apArticle.getLikes()* ArticleConstants.HOT_ARTICLE_LIKE_WEIGHT;
@@ -144,4 +180,18 @@ public class HotArticleServiceImpl implements HotArticleService {
         return score;
     }
 
+    /**
+     * 堆中只保存计分结果，卡片在入选后再查询
+     */
+    private static class Candidate {
+        private final Long id;
+        private final int score;
+        private final double rankScore;
+
+        private Candidate(Long id, int score, double rankScore) {
+            this.id = id;
+            this.score = score;
+            this.rankScore = rankScore;
+        }
+    }
 }
@@ -0,0 +1,61 @@
+package com.heima.article.stream;
+
+import com.heima.model.mess.ArticleVisitStreamMess;
+import com.heima.model.mess.UpdateArticleMess;
+import lombok.Data;
+
+/**
+ * 时间窗口内单篇文章的行为增量聚合结果
+ */
+@Data
+public class ArticleVisitAggregate {
+
+    private int collect;
+
+    private int comment;
+
+    private int like;
+
+    private int view;
+
+    /**
+     * 累加一条行为消息
+     * @param mess 行为消息
+     * @return 当前对象
+     */
+    public ArticleVisitAggregate add(UpdateArticleMess mess) {
+        if (mess == null || mess.getType() == null || mess.getAdd() == null) {
+            return this;
+        }
+        switch (mess.getType()) {
+            case COLLECTION:
+                collect += mess.getAdd();
+                break;
+            case COMMENT:
+                comment += mess.getAdd();
+                break;
+            case LIKES:
+                like += mess.getAdd();
+                break;
+            case VIEWS:
+                view += mess.getAdd();
+                break;
+        }
+        return this;
+    }
+
+    /**
+     * 转换为下游消费的消息
+     * @param articleId 文章id
+     * @return
+     */
+    public ArticleVisitStreamMess toMess(Long articleId) {
+        ArticleVisitStreamMess mess = new ArticleVisitStreamMess();
+        mess.setArticleId(articleId);
+        mess.setCollect(collect);
+        mess.setComment(comment);
+        mess.setLike(like);
+        mess.setView(view);
+        return mess;
+    }
+}
@@ -0,0 +1,80 @@
+package com.heima.article.stream;
+
+import java.util.Arrays;
+
+/**
+ * Count-Min Sketch，用固定大小的计数矩阵估计每篇文章的计数
+ * 估计值只会偏大，以1-e^-depth的概率误差不超过总数的e/width；
+ * 采用保守更新，只增加各行中等于最小值的计数，进一步减小高估
+ */
+public class CountMinSketch {
+
+    private final int depth;
+
+    private final int mask;
+
+    private final long[][] counts;
+
+    /**
+     * @param depth 哈希函数个数
+     * @param width 每行的计数个数，向上取整为2的幂
+     */
+    public CountMinSketch(int depth, int width) {
+        this.depth = depth;
+        int size = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+        this.mask = size - 1;
+        this.counts = new long[depth][size];
+    }
+
+    /**
+     * 累加计数
+     * @param item  文章id
+     * @param count 增量，必须为正数
+     * @return 累加后的估计值
+     */
+    public long add(long item, long count) {
+        int[] indexes = new int[depth];
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            indexes[i] = index(item, i);
+            min = Math.min(min, counts[i][indexes[i]]);
+        }
+        long estimate = min + count;
+        for (int i = 0; i < depth; i++) {
+            if (counts[i][indexes[i]] < estimate) {
+                counts[i][indexes[i]] = estimate;
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * 查询估计值
+     * @param item 文章id
+     * @return
+     */
+    public long estimate(long item) {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, counts[i][index(item, i)]);
+        }
+        return min;
+    }
+
+    public void clear() {
+        for (long[] row : counts) {
+            Arrays.fill(row, 0L);
+        }
+    }
+
+    /**
+     * 每行使用不同的种子对id做64位混淆后取低位
+     */
+    private int index(long item, int row) {
+        long h = item + (row + 1) * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        h = h ^ (h >>> 33);
+        return (int) h & mask;
+    }
+}
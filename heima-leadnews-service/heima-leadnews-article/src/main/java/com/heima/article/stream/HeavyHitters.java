@@ -0,0 +1,131 @@
+package com.heima.article.stream;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * 估计值最高的capacity篇文章，配合CountMinSketch使用
+ * sketch的估计值含哈希冲突带来的高估，只用于决定哪些文章进入跟踪；输出的阅读增量是文章进入跟踪后精确累加的阅读数，
+ * 进入跟踪之前的阅读数不补发，宁可少算不多算。
+ * 小顶堆中的估计值是入堆时的值，只在需要淘汰时才修正，更新已跟踪文章为O(1)；
+ * 被淘汰文章尚未输出的阅读数保留到下次输出，最多记录evictedCapacity篇，超出的丢弃并标记evictedOverflow
+ */
+public class HeavyHitters {
+
+    private final int capacity;
+
+    /**
+     * 被淘汰文章的未输出阅读数最多记录的文章数
+     */
+    private final int evictedCapacity;
+
+    /**
+     * 跟踪的文章id -> [估计值, 未输出的阅读数]
+     */
+    private final Map<Long, long[]> tracked = new HashMap<>();
+
+    /**
+     * 上次输出以来被淘汰的文章id -> 未输出的阅读数
+     */
+    private final Map<Long, Long> evicted = new HashMap<>();
+
+    /**
+     * 上次输出以来是否有被淘汰文章的阅读数因超出evictedCapacity而丢弃
+     */
+    private boolean evictedOverflow;
+
+    private final PriorityQueue<long[]> heap;
+
+    public HeavyHitters(int capacity) {
+        this.capacity = capacity;
+        this.evictedCapacity = capacity * 4;
+        this.heap = new PriorityQueue<>(capacity + 1, Comparator.comparingLong(entry -> entry[1]));
+    }
+
+    /**
+     * 记录一次阅读，已跟踪的文章精确累加阅读数，未跟踪的文章估计值超过当前最小值时替换该文章
+     * @param item      文章id
+     * @param count     本次的阅读数
+     * @param estimate  sketch中累加本次阅读数后的估计值，同一周期内只增不减
+     */
+    public void offer(long item, long count, long estimate) {
+        long[] value = tracked.get(item);
+        if (value != null) {
+            value[0] = estimate;
+            value[1] += count;
+            return;
+        }
+        if (tracked.size() >= capacity) {
+            // 修正堆顶过期的估计值，直到堆顶是真正的最小值
+            long[] min = heap.peek();
+            long current = tracked.get(min[0])[0];
+            while (current != min[1]) {
+                heap.poll();
+                min[1] = current;
+                heap.offer(min);
+                min = heap.peek();
+                current = tracked.get(min[0])[0];
+            }
+            if (estimate <= min[1]) {
+                return;
+            }
+            heap.poll();
+            evict(min[0], tracked.remove(min[0])[1]);
+        }
+        tracked.put(item, new long[]{estimate, count});
+        heap.offer(new long[]{item, estimate});
+    }
+
+    private void evict(long item, long pending) {
+        if (pending <= 0) {
+            return;
+        }
+        Long previous = evicted.get(item);
+        if (previous != null) {
+            evicted.put(item, previous + pending);
+        } else if (evicted.size() < evictedCapacity) {
+            evicted.put(item, pending);
+        } else {
+            evictedOverflow = true;
+        }
+    }
+
+    /**
+     * 取出上次输出以来跟踪期间精确累加的阅读数，包括期间被淘汰的文章
+     * @return 文章id -> 增量
+     */
+    public Map<Long, Long> drainDeltas() {
+        Map<Long, Long> deltas = new LinkedHashMap<>(evicted);
+        for (Map.Entry<Long, long[]> entry : tracked.entrySet()) {
+            long[] value = entry.getValue();
+            if (value[1] > 0) {
+                deltas.merge(entry.getKey(), value[1], Long::sum);
+                value[1] = 0;
+            }
+        }
+        evicted.clear();
+        evictedOverflow = false;
+        return deltas;
+    }
+
+    /**
+     * @return 上次输出以来是否丢弃过被淘汰文章的阅读数，应在drainDeltas之前调用
+     */
+    public boolean isEvictedOverflow() {
+        return evictedOverflow;
+    }
+
+    public boolean isTracked(long item) {
+        return tracked.containsKey(item);
+    }
+
+    public void clear() {
+        tracked.clear();
+        evicted.clear();
+        evictedOverflow = false;
+        heap.clear();
+    }
+}
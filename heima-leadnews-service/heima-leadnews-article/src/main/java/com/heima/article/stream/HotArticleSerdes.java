@@ -0,0 +1,64 @@
+package com.heima.article.stream;
+
+import com.alibaba.fastjson.JSON;
+import com.heima.model.mess.UpdateArticleMess;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 热点文章流处理使用的序列化
+ */
+public final class HotArticleSerdes {
+
+    /**
+     * 聚合结果固定为4个int，按collect、comment、like、view顺序排列
+     */
+    private static final int AGGREGATE_SIZE = 4 * Integer.BYTES;
+
+    private HotArticleSerdes() {
+    }
+
+    /**
+     * 聚合结果的定长二进制序列化
+     * @return
+     */
+    public static Serde<ArticleVisitAggregate> aggregate() {
+        return Serdes.serdeFrom((topic, data) -> {
+            if (data == null) {
+                return null;
+            }
+            return ByteBuffer.allocate(AGGREGATE_SIZE)
+                    .putInt(data.getCollect())
+                    .putInt(data.getComment())
+                    .putInt(data.getLike())
+                    .putInt(data.getView())
+                    .array();
+        }, (topic, bytes) -> {
+            if (bytes == null) {
+                return null;
+            }
+            if (bytes.length != AGGREGATE_SIZE) {
+                throw new SerializationException("invalid article visit aggregate size " + bytes.length);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            ArticleVisitAggregate aggregate = new ArticleVisitAggregate();
+            aggregate.setCollect(buffer.getInt());
+            aggregate.setComment(buffer.getInt());
+            aggregate.setLike(buffer.getInt());
+            aggregate.setView(buffer.getInt());
+            return aggregate;
+        });
+    }
+
+    /**
+     * 行为消息的序列化，与生产方一致使用json
+     * @return
+     */
+    public static Serde<UpdateArticleMess> updateArticleMess() {
+        return Serdes.serdeFrom((topic, data) -> data == null ? null : JSON.toJSONBytes(data),
+                (topic, bytes) -> bytes == null ? null : JSON.parseObject(bytes, UpdateArticleMess.class));
+    }
+}
@@ -5,136 +5,243 @@ import com.heima.common.constants.HotArticleConstants;
 import com.heima.model.mess.ArticleVisitStreamMess;
 import com.heima.model.mess.UpdateArticleMess;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.StringUtils;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.utils.Bytes;
 import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.StreamsBuilder;
 import org.apache.kafka.streams.kstream.*;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.state.Stores;
+import org.apache.kafka.streams.state.WindowStore;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.time.Duration;
+import java.util.Map;
 
 @Configuration
 @Slf4j
 public class HotArticleStreamHandler {
 
+    /**
+     * 按时间限流输出时，记录每个窗口已输出的聚合值，用于计算增量
+     */
+    private static final String EMITTED_STORE = "hot-article-stream-emitted-001";
+
+    /**
+     * 窗口大小，毫秒
+     */
+    @Value("${article.hot.stream.window-millis:10000}")
+    private long windowMillis;
+
+    /**
+     * 窗口关闭前允许迟到消息的时间，毫秒
+     */
+    @Value("${article.hot.stream.grace-millis:2000}")
+    private long graceMillis;
+
+    /**
+     * 输出方式，window-close为窗口关闭后每篇文章输出一次，rate-limit为按emit-interval-millis限流输出，eager为每条消息都输出
+     */
+    @Value("${article.hot.stream.emit-mode:window-close}")
+    private String emitMode;
+
+    @Value("${article.hot.stream.emit-interval-millis:5000}")
+    private long emitIntervalMillis;
+
+    /**
+     * 限流输出时缓冲的最大文章数，缓冲满时提前输出
+     */
+    @Value("${article.hot.stream.buffer-max-records:10000}")
+    private long bufferMaxRecords;
+
+    /**
+     * 是否通过Count-Min Sketch找出阅读量最高的文章，直接输出阅读增量更新热点排行
+     */
+    @Value("${article.hot.stream.heavy-hitter.enabled:false}")
+    private boolean heavyHitterEnabled;
+
+    @Value("${article.hot.stream.heavy-hitter.sketch-depth:4}")
+    private int sketchDepth;
+
+    @Value("${article.hot.stream.heavy-hitter.sketch-width:2048}")
+    private int sketchWidth;
+
+    /**
+     * 每个流任务跟踪的文章数
+     */
+    @Value("${article.hot.stream.heavy-hitter.top-k:1000}")
+    private int topK;
+
+    @Value("${article.hot.stream.heavy-hitter.emit-interval-millis:1000}")
+    private long heavyHitterEmitIntervalMillis;
+
+    /**
+     * 计数周期，周期结束时清空sketch，毫秒
+     */
+    @Value("${article.hot.stream.heavy-hitter.period-millis:60000}")
+    private long heavyHitterPeriodMillis;
+
     @Bean
-    public KStream<String,String> kStream(StreamsBuilder streamsBuilder){
-        // 从指定的 Kafka 主题中读取数据流（KStream）
-        KStream<String,String> stream = streamsBuilder.stream(HotArticleConstants.HOT_ARTICLE_SCORE_TOPIC);
-
-        // 对消息进行格式转换：把原始 JSON 转成 (文章ID, "类型:增量值") 的形式
-        stream.map((key,value)->{
-                    UpdateArticleMess mess = JSON.parseObject(value, UpdateArticleMess.class);
-                    return new KeyValue<>(mess.getArticleId().toString(),mess.getType().name()+":"+mess.getAdd());
-                })
+    public KStream<String,UpdateArticleMess> kStream(StreamsBuilder streamsBuilder){
+        Serde<UpdateArticleMess> messSerde = HotArticleSerdes.updateArticleMess();
+        Serde<ArticleVisitAggregate> aggregateSerde = HotArticleSerdes.aggregate();
+
+        // 从指定的 Kafka 主题中读取数据流（KStream），消息直接反序列化为对象
+        KStream<String,UpdateArticleMess> stream = streamsBuilder.stream(HotArticleConstants.HOT_ARTICLE_SCORE_TOPIC,
+                Consumed.with(Serdes.String(), messSerde));
+
+        if(heavyHitterEnabled){
+            // 阅读消息不做重分区，每个流任务用固定内存统计本分区的高频文章，各任务输出的增量在下游累加
+            stream.filter((key,mess)->mess!=null&&mess.getArticleId()!=null
+                            &&mess.getType()==UpdateArticleMess.UpdateArticleType.VIEWS
+                            &&mess.getAdd()!=null&&mess.getAdd()>0)
+                    .transform(()->new HeavyHitterTransformer(sketchDepth,sketchWidth,topK,
+                            heavyHitterEmitIntervalMillis,heavyHitterPeriodMillis))
+                    .to(HotArticleConstants.HOT_ARTICLE_TRENDING_TOPIC, Produced.with(Serdes.String(), Serdes.String()));
+        }
+
+        KTable<Windowed<String>,ArticleVisitAggregate> table = stream.filter((key,mess)->mess!=null&&mess.getArticleId()!=null)
                 // 按照文章 ID 进行分组，方便后续做聚合
-                .groupBy((key,value)->key)
-
-                // 定义一个 10 秒的时间窗口，用于对同一文章在 10 秒内的消息做聚合计算
-                .windowedBy(TimeWindows.of(Duration.ofSeconds(10)))
-
-                // 定义聚合逻辑：先初始化，再累加
-                .aggregate(new Initializer<String>() {
-                    // 初始化：当某篇文章第一次进入窗口时，设置初始值为 0
-                    @Override
-                    public String apply() {
-                        return "COLLECTION:0,COMMENT:0,LIKES:0,VIEWS:0";
-                    }
-                },new Aggregator<String, String, String>() {
-                    // 聚合逻辑：窗口内每来一条消息都会执行一次
-                    @Override
-                    public String apply(String key, String value, String aggValue) {
-                        if(StringUtils.isBlank(value)){
-                            return aggValue; // 如果消息为空，就直接返回当前累积值
-                        }
-
-                        // 解析当前窗口的历史聚合结果（也就是上一次的累加状态）
-                        String[] aggAry = aggValue.split(",");
-                        int col=0,com=0,lik=0,vie=0;
-                        for (String s : aggAry) {
-                            String[] split = s.split(":");
-                            // 从上次的聚合结果中恢复各项统计数据
-                            switch (UpdateArticleMess.UpdateArticleType.valueOf(split[0])){
-                                case COLLECTION:
-                                    col = Integer.parseInt(split[1]);
-                                    break;
-                                case COMMENT:
-                                    com = Integer.parseInt(split[1]);
-                                    break;
-                                case LIKES:
-                                    lik = Integer.parseInt(split[1]);
-                                    break;
-                                case VIEWS:
-                                    vie = Integer.parseInt(split[1]);
-                                    break;
-                            }
-                        }
-
-                        // 将当前这条消息对应的字段加到累计结果中
-                        String[] valAry = value.split(":");
-                        switch (UpdateArticleMess.UpdateArticleType.valueOf(valAry[0])){
-                            case COLLECTION:
-                                col += Integer.parseInt(valAry[1]);
-                                break;
-                            case COMMENT:
-                                com += Integer.parseInt(valAry[1]);
-                                break;
-                            case LIKES:
-                                lik += Integer.parseInt(valAry[1]);
-                                break;
-                            case VIEWS:
-                                vie += Integer.parseInt(valAry[1]);
-                                break;
-                        }
-
-                        // 拼接最新聚合结果，并打印日志
-                        String formatStr = String.format("COLLECTION:%d,COMMENT:%d,LIKES:%d,VIEWS:%d", col, com, lik, vie);
-                        System.out.println("文章的ID："+ key);
-                        System.out.println("当前时间窗口内的消息处理结果："+formatStr);
-                        return formatStr; // 返回新的聚合结果（进入状态存储）
-                    }
-                },Materialized.as("hot-article-stream-count-001")) // 定义状态存储名称
-
-                // 把窗口聚合结果转为普通流（key类型从Windowed<String>还原为String）
-                .toStream()
-                .map((key,value)->{
+                .groupBy((key,mess)->mess.getArticleId().toString(), Grouped.with(Serdes.String(), messSerde))
+
+                // 定义时间窗口，用于对同一文章在窗口内的消息做聚合计算
+                .windowedBy(TimeWindows.of(Duration.ofMillis(windowMillis)).grace(Duration.ofMillis(graceMillis)))
+
+                // 聚合为定长的计数对象，状态存储中每篇文章每个窗口只占16字节
+                .aggregate(ArticleVisitAggregate::new,
+                        (key,mess,aggregate)->aggregate.add(mess),
+                        Materialized.<String,ArticleVisitAggregate,WindowStore<Bytes,byte[]>>as("hot-article-stream-count-002")
+                                .withKeySerde(Serdes.String())
+                                .withValueSerde(aggregateSerde));
+
+        KStream<Windowed<String>,ArticleVisitAggregate> result;
+        if("window-close".equals(emitMode)){
+            // 窗口关闭后只输出最终结果，下游每篇文章每个窗口只更新一次
+            result = table.suppress(Suppressed.untilWindowCloses(Suppressed.BufferConfig.unbounded())).toStream();
+        }else {
+            KStream<Windowed<String>,ArticleVisitAggregate> updates = "rate-limit".equals(emitMode)
+                    ? table.suppress(Suppressed.untilTimeLimit(Duration.ofMillis(emitIntervalMillis),
+                            Suppressed.BufferConfig.maxRecords(bufferMaxRecords).emitEarlyWhenFull())).toStream()
+                    : table.toStream();
+            // 同一窗口会多次输出累计值，下游按增量累加，这里换算为与上次输出的差值
+            long retention = windowMillis + graceMillis + emitIntervalMillis;
+            streamsBuilder.addStateStore(Stores.windowStoreBuilder(
+                    Stores.persistentWindowStore(EMITTED_STORE, Duration.ofMillis(retention), Duration.ofMillis(windowMillis), false),
+                    Serdes.String(), aggregateSerde));
+            result = updates.transformValues(EmittedDeltaTransformer::new, EMITTED_STORE);
+        }
+
+        // 把窗口聚合结果转为普通流（key类型从Windowed<String>还原为String）
+        result.filter((key,aggregate)->aggregate!=null)
+                .map((key,aggregate)->{
                     // 将 key 转成文章ID字符串，同时格式化 value 为下游可识别的 JSON 对象
-                    return new KeyValue<>(key.key().toString(),formatObj(key.key().toString(),value));
+                    String articleId = key.key();
+                    return new KeyValue<>(articleId,JSON.toJSONString(aggregate.toMess(Long.valueOf(articleId))));
                 })
 
                 // 把聚合好的结果发送到另一个 Kafka 主题，供下游服务使用
-                .to(HotArticleConstants.HOT_ARTICLE_INCR_HANDLE_TOPIC);
+                .to(HotArticleConstants.HOT_ARTICLE_INCR_HANDLE_TOPIC, Produced.with(Serdes.String(), Serdes.String()));
 
         // 返回定义的流对象
         return stream;
     }
 
-    // 把聚合后的字符串格式转成对象再转JSON，方便下游解析
-    private String formatObj(String articleId, String value) {
-        ArticleVisitStreamMess mess = new ArticleVisitStreamMess();
-        mess.setArticleId(Long.valueOf(articleId)); // 设置文章ID
-
-        String[] valAry = value.split(","); // 拆分四种指标
-        for (String val : valAry) {
-            String[] split = val.split(":");
-            // 根据字段类型设置对象属性
-            switch (UpdateArticleMess.UpdateArticleType.valueOf(split[0])){
-                case COLLECTION:
-                    mess.setCollect(Integer.parseInt(split[1]));
-                    break;
-                case COMMENT:
-                    mess.setComment(Integer.parseInt(split[1]));
-                    break;
-                case LIKES:
-                    mess.setLike(Integer.parseInt(split[1]));
-                    break;
-                case VIEWS:
-                    mess.setView(Integer.parseInt(split[1]));
-                    break;
+    /**
+     * 用Count-Min Sketch估计本任务内每篇文章的阅读量，跟踪估计值最高的topK篇，
+     * 按emit-interval-millis定时输出这些文章进入跟踪后精确累加的阅读增量，周期结束时清空重新统计
+     */
+    private static class HeavyHitterTransformer
+            implements Transformer<String,UpdateArticleMess,KeyValue<String,String>> {
+
+        private final CountMinSketch sketch;
+        private final HeavyHitters heavyHitters;
+        private final long emitIntervalMillis;
+        private final long periodMillis;
+        private ProcessorContext context;
+        private long periodStart;
+
+        private HeavyHitterTransformer(int depth, int width, int topK, long emitIntervalMillis, long periodMillis) {
+            this.sketch = new CountMinSketch(depth, width);
+            this.heavyHitters = new HeavyHitters(topK);
+            this.emitIntervalMillis = emitIntervalMillis;
+            this.periodMillis = periodMillis;
+        }
+
+        @Override
+        public void init(ProcessorContext context) {
+            this.context = context;
+            this.periodStart = System.currentTimeMillis();
+            context.schedule(Duration.ofMillis(emitIntervalMillis), PunctuationType.WALL_CLOCK_TIME, this::emit);
+        }
+
+        @Override
+        public KeyValue<String,String> transform(String key, UpdateArticleMess mess) {
+            long articleId = mess.getArticleId();
+            heavyHitters.offer(articleId, mess.getAdd(), sketch.add(articleId, mess.getAdd()));
+            return null;
+        }
+
+        private void emit(long timestamp) {
+            if(heavyHitters.isEvictedOverflow()){
+                log.warn("被淘汰的高频文章过多，部分阅读增量未输出");
+            }
+            for (Map.Entry<Long,Long> entry : heavyHitters.drainDeltas().entrySet()) {
+                ArticleVisitStreamMess mess = new ArticleVisitStreamMess();
+                mess.setArticleId(entry.getKey());
+                mess.setView(entry.getValue().intValue());
+                context.forward(entry.getKey().toString(), JSON.toJSONString(mess));
+            }
+            if(timestamp-periodStart>=periodMillis){
+                sketch.clear();
+                heavyHitters.clear();
+                periodStart = timestamp;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * 将同一窗口的累计值换算为与上次输出的差值
+     */
+    private static class EmittedDeltaTransformer
+            implements ValueTransformerWithKey<Windowed<String>,ArticleVisitAggregate,ArticleVisitAggregate> {
+
+        private WindowStore<String,ArticleVisitAggregate> store;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void init(ProcessorContext context) {
+            store = (WindowStore<String,ArticleVisitAggregate>) context.getStateStore(EMITTED_STORE);
+        }
+
+        @Override
+        public ArticleVisitAggregate transform(Windowed<String> key, ArticleVisitAggregate value) {
+            if(value==null){
+                return null;
+            }
+            long windowStart = key.window().start();
+            ArticleVisitAggregate emitted = store.fetch(key.key(), windowStart);
+            store.put(key.key(), value, windowStart);
+            if(emitted==null){
+                return value;
             }
+            ArticleVisitAggregate delta = new ArticleVisitAggregate();
+            delta.setCollect(value.getCollect()-emitted.getCollect());
+            delta.setComment(value.getComment()-emitted.getComment());
+            delta.setLike(value.getLike()-emitted.getLike());
+            delta.setView(value.getView()-emitted.getView());
+            return delta;
+        }
+
+        @Override
+        public void close() {
         }
-        log.info("处理之后的数据："+JSON.toJSONString(mess)); // 输出日志
-        return JSON.toJSONString(mess); // 返回 JSON 字符串
     }
 }
@@ -0,0 +1,19 @@
+-- 文章列表按(publish_time, id)游标分页
+-- 上下架、删除标记冗余到ap_article，由ApArticleConfigServiceImpl同步，列表查询不再关联ap_article_config；
+-- 标记作为等值条件放在publish_time之前，索引范围扫描即可得到有序的id，无需回表过滤
+
+ALTER TABLE `ap_article`
+    ADD COLUMN `is_down` tinyint(1) NOT NULL DEFAULT 0 COMMENT '是否下架，与ap_article_config同步',
+    ADD COLUMN `is_delete` tinyint(1) NOT NULL DEFAULT 0 COMMENT '是否删除，与ap_article_config同步',
+    ADD INDEX `idx_channel_feed` (`channel_id`, `is_delete`, `is_down`, `publish_time`, `id`),
+    ADD INDEX `idx_feed` (`is_delete`, `is_down`, `publish_time`, `id`);
+
+UPDATE `ap_article` aa
+    JOIN `ap_article_config` aac ON aa.id = aac.article_id
+SET aa.is_down = aac.is_down, aa.is_delete = aac.is_delete;
+
+-- 原查询中没有配置记录的文章不会出现在列表中，保持一致
+UPDATE `ap_article` aa
+    LEFT JOIN `ap_article_config` aac ON aa.id = aac.article_id
+SET aa.is_delete = 1
+WHERE aac.id IS NULL;
@@ -0,0 +1,41 @@
+package com.heima.article.stream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CountMinSketchTest {
+
+    @Test
+    public void estimateIsExactWithoutCollisions() {
+        CountMinSketch sketch = new CountMinSketch(4, 1024);
+        assertEquals(3, sketch.add(1L, 3));
+        assertEquals(5, sketch.add(1L, 2));
+        assertEquals(5, sketch.estimate(1L));
+        assertEquals(0, sketch.estimate(2L));
+    }
+
+    @Test
+    public void estimateNeverUnderCounts() {
+        // 宽度很小，必然有冲突
+        CountMinSketch sketch = new CountMinSketch(2, 4);
+        long[] counts = new long[100];
+        for (int i = 0; i < 1000; i++) {
+            int item = i % counts.length;
+            counts[item] += i % 7 + 1;
+            sketch.add(item, i % 7 + 1);
+        }
+        for (int item = 0; item < counts.length; item++) {
+            assertTrue(sketch.estimate(item) >= counts[item]);
+        }
+    }
+
+    @Test
+    public void clear() {
+        CountMinSketch sketch = new CountMinSketch(4, 16);
+        sketch.add(1L, 10);
+        sketch.clear();
+        assertEquals(0, sketch.estimate(1L));
+    }
+}
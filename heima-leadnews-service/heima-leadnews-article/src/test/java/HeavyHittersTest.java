@@ -0,0 +1,110 @@
+package com.heima.article.stream;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeavyHittersTest {
+
+    @Test
+    public void drainDeltasReturnsExactCountsSinceLastDrain() {
+        HeavyHitters heavyHitters = new HeavyHitters(2);
+        // 估计值偏大，输出的仍是精确累加的阅读数
+        heavyHitters.offer(1L, 2, 10);
+        heavyHitters.offer(1L, 3, 15);
+        heavyHitters.offer(2L, 1, 8);
+
+        Map<Long, Long> deltas = heavyHitters.drainDeltas();
+        assertEquals(2, deltas.size());
+        assertEquals(Long.valueOf(5), deltas.get(1L));
+        assertEquals(Long.valueOf(1), deltas.get(2L));
+
+        heavyHitters.offer(1L, 4, 19);
+        deltas = heavyHitters.drainDeltas();
+        assertEquals(1, deltas.size());
+        assertEquals(Long.valueOf(4), deltas.get(1L));
+
+        assertTrue(heavyHitters.drainDeltas().isEmpty());
+    }
+
+    @Test
+    public void admitsOnlyWhenEstimateExceedsMinimum() {
+        HeavyHitters heavyHitters = new HeavyHitters(2);
+        heavyHitters.offer(1L, 5, 5);
+        heavyHitters.offer(2L, 3, 3);
+        heavyHitters.offer(3L, 1, 3);
+        assertFalse(heavyHitters.isTracked(3L));
+
+        heavyHitters.offer(3L, 1, 4);
+        assertTrue(heavyHitters.isTracked(3L));
+        assertFalse(heavyHitters.isTracked(2L));
+
+        // 新进入的文章只输出进入后的阅读数，不输出估计值
+        Map<Long, Long> deltas = heavyHitters.drainDeltas();
+        assertEquals(Long.valueOf(1), deltas.get(3L));
+    }
+
+    @Test
+    public void evictionCorrectsStaleHeapEstimates() {
+        HeavyHitters heavyHitters = new HeavyHitters(2);
+        heavyHitters.offer(1L, 1, 1);
+        heavyHitters.offer(2L, 2, 2);
+        // 堆中1的估计值仍为1，淘汰前需修正为10，实际最小的是2
+        heavyHitters.offer(1L, 9, 10);
+        heavyHitters.offer(3L, 3, 3);
+
+        assertTrue(heavyHitters.isTracked(1L));
+        assertTrue(heavyHitters.isTracked(3L));
+        assertFalse(heavyHitters.isTracked(2L));
+    }
+
+    @Test
+    public void evictedPendingCountsAreDrained() {
+        HeavyHitters heavyHitters = new HeavyHitters(1);
+        heavyHitters.offer(1L, 4, 4);
+        heavyHitters.offer(2L, 1, 5);
+        assertFalse(heavyHitters.isTracked(1L));
+
+        Map<Long, Long> deltas = heavyHitters.drainDeltas();
+        assertEquals(Long.valueOf(4), deltas.get(1L));
+        assertEquals(Long.valueOf(1), deltas.get(2L));
+
+        // 已输出的阅读数不再重复输出
+        heavyHitters.offer(1L, 2, 6);
+        deltas = heavyHitters.drainDeltas();
+        assertEquals(Long.valueOf(2), deltas.get(1L));
+        assertNull(deltas.get(2L));
+    }
+
+    @Test
+    public void evictedOverflowDropsPendingCounts() {
+        // capacity为1时最多记录4篇被淘汰文章的未输出阅读数
+        HeavyHitters heavyHitters = new HeavyHitters(1);
+        for (long item = 1; item <= 6; item++) {
+            heavyHitters.offer(item, 1, item);
+        }
+        assertTrue(heavyHitters.isEvictedOverflow());
+
+        Map<Long, Long> deltas = heavyHitters.drainDeltas();
+        // 1到4的记录保留，5被淘汰时超出上限被丢弃，6仍在跟踪
+        assertEquals(5, deltas.size());
+        assertNull(deltas.get(5L));
+        assertEquals(Long.valueOf(1), deltas.get(6L));
+        assertFalse(heavyHitters.isEvictedOverflow());
+    }
+
+    @Test
+    public void clear() {
+        HeavyHitters heavyHitters = new HeavyHitters(1);
+        heavyHitters.offer(1L, 1, 1);
+        heavyHitters.offer(2L, 1, 2);
+        heavyHitters.clear();
+        assertFalse(heavyHitters.isTracked(2L));
+        assertTrue(heavyHitters.drainDeltas().isEmpty());
+    }
+}
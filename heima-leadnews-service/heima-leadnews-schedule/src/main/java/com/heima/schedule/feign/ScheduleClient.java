@@ -7,6 +7,8 @@ import com.heima.schedule.service.TaskService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
+
 
 @RestController
 public class ScheduleClient  implements IScheduleClient {
@@ -25,6 +27,17 @@ public class ScheduleClient  implements IScheduleClient {
         return ResponseResult.okResult(taskService.addTask(task));
     }
 
+    /**
+     * 批量添加任务
+     * @param tasks 任务对象列表
+     * @return 任务id列表
+     */
+    @PostMapping("/api/v1/task/addBatch")
+    @Override
+    public ResponseResult addTasks(@RequestBody List<Task> tasks) {
+        return ResponseResult.okResult(taskService.addTasks(tasks));
+    }
+
     /**
      * 取消任务
      * @param taskId 任务id
@@ -47,4 +60,69 @@ public class ScheduleClient  implements IScheduleClient {
     public ResponseResult poll(@PathVariable("type") int type, @PathVariable("priority") int priority) {
         return ResponseResult.okResult(taskService.poll(type,priority));
     }
-}
\ No newline at end of file
+
+    /**
+     * 按照类型拉取任意优先级的任务
+     * @param type
+     * @return
+     */
+    @GetMapping("/api/v1/task/pollAny/{type}")
+    @Override
+    public ResponseResult pollAny(@PathVariable("type") int type) {
+        return ResponseResult.okResult(taskService.pollAny(type));
+    }
+
+    /**
+     * 按照类型和优先级批量拉取任务，并加租约
+     * @param type
+     * @param priority
+     * @param maxBatch
+     * @param leaseMillis
+     * @return
+     */
+    @GetMapping("/api/v1/task/poll/{type}/{priority}/{maxBatch}/{leaseMillis}")
+    @Override
+    public ResponseResult poll(@PathVariable("type") int type, @PathVariable("priority") int priority,
+                               @PathVariable("maxBatch") int maxBatch, @PathVariable("leaseMillis") long leaseMillis) {
+        return ResponseResult.okResult(taskService.poll(type,priority,maxBatch,leaseMillis));
+    }
+
+    /**
+     * 长轮询拉取任务，队列为空时阻塞等待，直到有任务到达或超时
+     * @param type
+     * @param priority
+     * @param maxBatch
+     * @param leaseMillis
+     * @param timeoutMillis
+     * @return
+     */
+    @GetMapping("/api/v1/task/longPoll/{type}/{priority}/{maxBatch}/{leaseMillis}/{timeoutMillis}")
+    @Override
+    public ResponseResult longPoll(@PathVariable("type") int type, @PathVariable("priority") int priority,
+                                   @PathVariable("maxBatch") int maxBatch, @PathVariable("leaseMillis") long leaseMillis,
+                                   @PathVariable("timeoutMillis") long timeoutMillis) {
+        return ResponseResult.okResult(taskService.longPoll(type,priority,maxBatch,leaseMillis,timeoutMillis));
+    }
+
+    /**
+     * 确认租约中的任务已执行
+     * @param taskIds
+     * @return 确认成功的任务数
+     */
+    @PostMapping("/api/v1/task/ack")
+    @Override
+    public ResponseResult ack(@RequestBody List<Long> taskIds) {
+        return ResponseResult.okResult(taskService.ack(taskIds));
+    }
+
+    /**
+     * 上报任务执行失败
+     * @param taskIds
+     * @return 处理成功的任务数
+     */
+    @PostMapping("/api/v1/task/fail")
+    @Override
+    public ResponseResult fail(@RequestBody List<Long> taskIds) {
+        return ResponseResult.okResult(taskService.fail(taskIds));
+    }
+}
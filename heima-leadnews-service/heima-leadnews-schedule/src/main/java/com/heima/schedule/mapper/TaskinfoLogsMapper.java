@@ -3,6 +3,9 @@ package com.heima.schedule.mapper;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.heima.model.schedule.pojos.TaskinfoLogs;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -14,4 +17,25 @@ import org.apache.ibatis.annotations.Mapper;
 @Mapper
 public interface TaskinfoLogsMapper extends BaseMapper<TaskinfoLogs> {
 
+    /**
+     * 批量插入任务日志，一条多值insert语句
+     * @param list 任务日志列表
+     * @return
+     */
+    public int insertBatch(@Param("list") List<TaskinfoLogs> list);
+
+    /**
+     * 创建归档表，表结构与taskinfo_logs一致
+     * @param tableName 归档表名，由程序生成，不能来自外部输入
+     * @return
+     */
+    public int createArchiveTable(@Param("tableName") String tableName);
+
+    /**
+     * 将指定的任务日志复制到归档表
+     * @param tableName 归档表名
+     * @param taskIds   任务id列表
+     * @return
+     */
+    public int copyToArchive(@Param("tableName") String tableName, @Param("taskIds") List<Long> taskIds);
 }
@@ -20,4 +20,11 @@ import java.util.List;
 public interface TaskinfoMapper extends BaseMapper<Taskinfo> {
 
     public List<Taskinfo> queryFutureTime(@Param("taskType")int type, @Param("priority")int priority, @Param("future")Date future);
+
+    /**
+     * 批量插入任务，一条多值insert语句
+     * @param list 任务列表，taskId需提前生成
+     * @return
+     */
+    public int insertBatch(@Param("list") List<Taskinfo> list);
 }
@@ -0,0 +1,173 @@
+package com.heima.schedule.metrics;
+
+import com.heima.common.constants.ScheduleConstants;
+import com.heima.common.redis.CacheService;
+import com.heima.model.schedule.dtos.Task;
+import com.heima.schedule.shard.ScheduleShardManager;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 调度服务指标，通过actuator的metrics端点暴露
+ * schedule.queue.size           各type_priority下future/topic/lease/dead队列长度，只有负责该键的节点上报实际值，
+ *                               其他节点上报0，集群内按key求和即为队列总长度
+ * schedule.task.add             添加任务耗时
+ * schedule.task.poll            拉取任务耗时，长轮询包含阻塞等待时间，不计入
+ * schedule.refresh              一次refresh耗时
+ * schedule.task.fire.lag        任务被拉取的时间与execute_time的差值，反映任务的实际延迟
+ */
+@Component
+@Slf4j
+public class ScheduleMetrics {
+
+    private static final String[] QUEUES = {ScheduleConstants.FUTURE, ScheduleConstants.TOPIC,
+            ScheduleConstants.LEASE, ScheduleConstants.DEAD_LETTER};
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private CacheService cacheService;
+
+    @Resource
+    private ScheduleShardManager scheduleShardManager;
+
+    private Timer addTaskTimer;
+
+    private Timer pollTimer;
+
+    private Timer batchPollTimer;
+
+    private Timer refreshTimer;
+
+    /**
+     * 队列键 -> 最近一次采样的长度，首次出现时注册gauge
+     */
+    private final Map<String, AtomicLong> queueSizes = new ConcurrentHashMap<>();
+
+    /**
+     * type_priority -> 延迟直方图
+     */
+    private final Map<String, Timer> fireLagTimers = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        addTaskTimer = meterRegistry.timer("schedule.task.add");
+        pollTimer = meterRegistry.timer("schedule.task.poll", "mode", "single");
+        batchPollTimer = meterRegistry.timer("schedule.task.poll", "mode", "batch");
+        refreshTimer = meterRegistry.timer("schedule.refresh");
+    }
+
+    public Timer.Sample startTimer() {
+        return Timer.start(meterRegistry);
+    }
+
+    public Timer getAddTaskTimer() {
+        return addTaskTimer;
+    }
+
+    public Timer getPollTimer() {
+        return pollTimer;
+    }
+
+    public Timer getBatchPollTimer() {
+        return batchPollTimer;
+    }
+
+    public Timer getRefreshTimer() {
+        return refreshTimer;
+    }
+
+    /**
+     * 记录任务被拉取时相对execute_time的延迟
+     * @param task 拉取到的任务
+     */
+    public void recordFireLag(Task task) {
+        if (task == null) {
+            return;
+        }
+        String key = task.getTaskType() + "_" + task.getPriority();
+        Timer timer = fireLagTimers.computeIfAbsent(key, k -> Timer.builder("schedule.task.fire.lag")
+                .tag("key", k)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofMinutes(10))
+                .register(meterRegistry));
+        timer.record(Math.max(0, System.currentTimeMillis() - task.getExecuteTime()), TimeUnit.MILLISECONDS);
+    }
+
+    public void recordFireLag(List<Task> tasks) {
+        if (tasks == null) {
+            return;
+        }
+        for (Task task : tasks) {
+            recordFireLag(task);
+        }
+    }
+
+    /**
+     * 定期采样各队列长度
+     * 各队列的键都取自登记集合，refresh转移出的topic键与future键同名，不再存在的键长度记为0
+     */
+    @Scheduled(fixedDelayString = "${schedule.metrics.sample-interval:10000}")
+    public void sampleQueueSizes() {
+        try {
+            Set<String> keys = new HashSet<>();
+            for (String futureKey : cacheService.setMembers(ScheduleConstants.FUTURE_KEYS)) {
+                keys.add(futureKey.split(ScheduleConstants.FUTURE)[1]);
+            }
+            for (String topicKey : cacheService.setMembers(ScheduleConstants.TOPIC_KEYS)) {
+                keys.add(topicKey.split(ScheduleConstants.TOPIC)[1]);
+            }
+            for (String leaseKey : cacheService.setMembers(ScheduleConstants.LEASE_KEYS)) {
+                keys.add(leaseKey.split(ScheduleConstants.LEASE)[1]);
+            }
+            for (String deadKey : cacheService.setMembers(ScheduleConstants.DEAD_LETTER_KEYS)) {
+                keys.add(deadKey.split(ScheduleConstants.DEAD_LETTER)[1]);
+            }
+            // 已注册但本次未出现的键也要刷新，避免gauge停留在旧值
+            for (String queueKey : queueSizes.keySet()) {
+                for (String queue : QUEUES) {
+                    if (queueKey.startsWith(queue)) {
+                        keys.add(queueKey.substring(queue.length()));
+                    }
+                }
+            }
+            for (String key : keys) {
+                boolean owned = scheduleShardManager.owns(key);
+                for (String queue : QUEUES) {
+                    long size = 0;
+                    if (owned) {
+                        Long value = ScheduleConstants.FUTURE.equals(queue) || ScheduleConstants.LEASE.equals(queue)
+                                ? cacheService.zSize(queue + key)
+                                : cacheService.lLen(queue + key);
+                        size = value == null ? 0 : value;
+                    }
+                    queueSize(queue, key).set(size);
+                }
+            }
+        } catch (Exception e) {
+            log.error("sample schedule queue size exception", e);
+        }
+    }
+
+    private AtomicLong queueSize(String queue, String key) {
+        return queueSizes.computeIfAbsent(queue + key, k -> meterRegistry.gauge("schedule.queue.size",
+                Tags.of("queue", queue.substring(0, queue.length() - 1), "key", key), new AtomicLong()));
+    }
+}
@@ -2,6 +2,8 @@ package com.heima.schedule.service;
 
 import com.heima.model.schedule.dtos.Task;
 
+import java.util.List;
+
 /**
  * 对外访问接口
  */
@@ -13,6 +15,12 @@ public interface TaskService {
      * @return       任务id
      */
      long addTask(Task task) ;
+    /**
+     * 批量添加任务
+     * @param tasks  任务对象列表
+     * @return       任务id列表，顺序与入参一致
+     */
+     List<Long> addTasks(List<Task> tasks);
     /**
      * 取消任务
      * @param taskId        任务id
@@ -26,4 +34,41 @@ public interface TaskService {
      * @return
      */
      Task poll(int type,int priority);
-}
\ No newline at end of file
+    /**
+     * 按照类型拉取任务，在该类型的所有优先级之间按权重选择，高优先级优先且低优先级不会被饿死
+     * @param type
+     * @return
+     */
+     Task pollAny(int type);
+    /**
+     * 按照类型和优先级批量拉取任务，拉取的任务处于租约状态，需在租约到期前调用ack确认
+     * @param type
+     * @param priority
+     * @param maxBatch     单次最多拉取的任务数
+     * @param leaseMillis  租约时长，毫秒
+     * @return
+     */
+     List<Task> poll(int type,int priority,int maxBatch,long leaseMillis);
+    /**
+     * 长轮询拉取任务，队列为空时阻塞等待，直到有任务到达或超时，拉取的任务同样处于租约状态
+     * @param type
+     * @param priority
+     * @param maxBatch       单次最多拉取的任务数
+     * @param leaseMillis    租约时长，毫秒
+     * @param timeoutMillis  最长等待时间，毫秒
+     * @return
+     */
+     List<Task> longPoll(int type,int priority,int maxBatch,long leaseMillis,long timeoutMillis);
+    /**
+     * 确认租约中的任务已执行完成
+     * @param taskIds  任务id列表
+     * @return         确认成功的任务数
+     */
+     int ack(List<Long> taskIds);
+    /**
+     * 上报任务执行失败，按指数退避重新放入future队列，失败次数超过上限后进入死信队列
+     * @param taskIds  任务id列表
+     * @return         处理成功的任务数
+     */
+     int fail(List<Long> taskIds);
+}
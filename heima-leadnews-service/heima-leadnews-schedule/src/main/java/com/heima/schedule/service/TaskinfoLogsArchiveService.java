@@ -0,0 +1,13 @@
+package com.heima.schedule.service;
+
+/**
+ * 任务日志归档
+ */
+public interface TaskinfoLogsArchiveService {
+
+    /**
+     * 将已结束且超过保留时间的任务日志按月迁移到归档表
+     * @return 本次归档的记录数
+     */
+    int archive();
+}
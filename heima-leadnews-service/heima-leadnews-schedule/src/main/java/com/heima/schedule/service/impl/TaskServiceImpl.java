@@ -1,6 +1,6 @@
 package com.heima.schedule.service.impl;
 
-import com.alibaba.fastjson.JSON;
+import com.baomidou.mybatisplus.core.toolkit.IdWorker;
 import com.baomidou.mybatisplus.core.toolkit.Wrappers;
 import com.heima.common.constants.ScheduleConstants;
 import com.heima.common.redis.CacheService;
@@ -9,11 +9,16 @@ import com.heima.model.schedule.pojos.Taskinfo;
 import com.heima.model.schedule.pojos.TaskinfoLogs;
 import com.heima.schedule.mapper.TaskinfoLogsMapper;
 import com.heima.schedule.mapper.TaskinfoMapper;
+import com.heima.schedule.metrics.ScheduleMetrics;
 import com.heima.schedule.service.TaskService;
+import com.heima.schedule.shard.ScheduleShardManager;
+import com.heima.schedule.timer.TaskTimingWheel;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.RedisStringCommands;
@@ -22,7 +27,12 @@ import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
@@ -33,6 +43,31 @@ import java.util.concurrent.TimeUnit;
 @Transactional
 @Slf4j
 public class TaskServiceImpl implements TaskService {
+    /**
+     * 长轮询最长等待时间，需小于调用方feign的读超时时间
+     */
+    private static final long MAX_LONG_POLL_MILLIS = 20 * 1000;
+
+    /**
+     * 长轮询最短等待时间，阻塞命令的超时为0表示永久阻塞，必须为正数
+     */
+    private static final long MIN_LONG_POLL_MILLIS = 1000;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private ScheduleShardManager scheduleShardManager;
+
+    @Resource
+    private ScheduleMetrics scheduleMetrics;
+
+    /**
+     * 进程内时间轮，未开启时为null
+     */
+    @Autowired(required = false)
+    private TaskTimingWheel taskTimingWheel;
+
     /**
      * 添加任务到系统中
      * 首先将任务添加到数据库，如果添加成功则同时添加到缓存中
@@ -42,13 +77,43 @@ public class TaskServiceImpl implements TaskService {
      */
     @Override
     public long addTask(Task task) {
-        // 将任务添加到数据库
-        boolean b = addTaskToDb(task);
+        Timer.Sample sample = scheduleMetrics.startTimer();
+        try {
+            // 将任务添加到数据库
+            boolean b = addTaskToDb(task);
+            if(b){
+                // 数据库添加成功后，将任务添加到缓存
+                addTaskToCache(task);
+            }
+            return task.getTaskId();
+        } finally {
+            sample.stop(scheduleMetrics.getAddTaskTimer());
+        }
+    }
+
+    /**
+     * 批量添加任务
+     * 两张表各用一条多值insert写入，缓存通过一次管道写入
+     *
+     * @param tasks 要添加的任务列表
+     * @return 任务id列表，写库失败时返回空列表
+     */
+    @Override
+    public List<Long> addTasks(List<Task> tasks) {
+        List<Long> taskIds = new ArrayList<>();
+        if(tasks==null||tasks.isEmpty()){
+            return taskIds;
+        }
+        // 批量写入数据库
+        boolean b = addTasksToDb(tasks);
         if(b){
-            // 数据库添加成功后，将任务添加到缓存
-            addTaskToCache(task);
+            // 数据库写入成功后，批量写入缓存
+            addTasksToCache(tasks);
+            for (Task task : tasks) {
+                taskIds.add(task.getTaskId());
+            }
         }
-        return task.getTaskId();
+        return taskIds;
     }
 
     /**
@@ -79,169 +144,780 @@ public class TaskServiceImpl implements TaskService {
     @Override
     public Task poll(int type, int priority) {
         Task task=null;
+        Timer.Sample sample = scheduleMetrics.startTimer();
         try {
-            // 构造缓存key并从缓存右侧弹出任务数据
+            // 构造缓存key并从缓存右侧弹出任务id
             String key = type + "_" + priority;
-            String task_json = cacheService.lRightPop(ScheduleConstants.TOPIC + key);
-            if(StringUtils.isNotBlank(task_json)){
-                // 将json字符串转换为Task对象
-                task = JSON.parseObject(task_json, Task.class);
-                // 更新数据库中任务状态为已执行
-                updateDb(task.getTaskId(),ScheduleConstants.EXECUTED);
+            String taskId = cacheService.lRightPop(ScheduleConstants.TOPIC + key);
+            if(StringUtils.isNotBlank(taskId)){
+                // 更新数据库中任务状态为已执行，并以数据库记录组装任务，状态转换失败(如已被取消)时返回null
+                task = updateDb(Long.parseLong(taskId),ScheduleConstants.EXECUTED);
+                scheduleMetrics.recordFireLag(task);
             }
         }catch (Exception e){
             e.printStackTrace();
             log.error("poll task exception");
+        }finally {
+            sample.stop(scheduleMetrics.getPollTimer());
         }
         return task;
     }
     /**
-     * 重新加载数据到缓存中
+     * 各优先级的拉取权重，未配置的优先级以优先级数值作为权重(最小为1)，数值越大越优先
+     */
+    @Value("#{${schedule.poll.priority-weights:{:}}}")
+    private Map<Integer, Integer> priorityWeights;
+
+    /**
+     * 任务类型 -> 已登记的优先级，由loadTypePriorities定期刷新
+     */
+    private volatile Map<Integer, Set<Integer>> typePriorities = Collections.emptyMap();
+
+    /**
+     * 拉取指定类型下任意优先级的任务
+     * 通过一次脚本调用在该类型所有非空的topic队列中按权重随机选择一个并弹出任务，
+     * 高优先级的任务被选中的概率更高，低优先级只要权重大于0就不会被饿死
+     * @param type 任务类型
+     * @return 返回获取到的任务对象，如果获取失败或无任务则返回null
+     */
+    @Override
+    public Task pollAny(int type) {
+        Task task=null;
+        Timer.Sample sample = scheduleMetrics.startTimer();
+        try {
+            Set<Integer> priorities = typePriorities.get(type);
+            if(priorities==null){
+                loadTypePriorities();
+                priorities = typePriorities.get(type);
+            }
+            if(priorities==null||priorities.isEmpty()){
+                return null;
+            }
+            Map<String, Integer> weights = new LinkedHashMap<>();
+            for (Integer priority : priorities) {
+                weights.put(ScheduleConstants.TOPIC + type + "_" + priority, priorityWeight(priority));
+            }
+            List<String> result = cacheService.lWeightedRightPop(weights);
+            if(result!=null&&result.size()==2&&StringUtils.isNotBlank(result.get(1))){
+                // 与poll一致，状态转换失败(如已被取消)时返回null
+                task = updateDb(Long.parseLong(result.get(1)),ScheduleConstants.EXECUTED);
+                scheduleMetrics.recordFireLag(task);
+            }
+        }catch (Exception e){
+            e.printStackTrace();
+            log.error("poll any task exception");
+        }finally {
+            sample.stop(scheduleMetrics.getPollTimer());
+        }
+        return task;
+    }
+
+    private int priorityWeight(int priority) {
+        Integer weight = priorityWeights.get(priority);
+        return weight != null ? weight : Math.max(priority, 1);
+    }
+
+    /**
+     * 已登记的future键和topic键对应的type_priority
+     * @return
+     */
+    private Set<String> registeredKeys() {
+        Set<String> keys = new HashSet<>();
+        for (String futureKey : cacheService.setMembers(ScheduleConstants.FUTURE_KEYS)) {
+            keys.add(futureKey.split(ScheduleConstants.FUTURE)[1]);
+        }
+        for (String topicKey : cacheService.setMembers(ScheduleConstants.TOPIC_KEYS)) {
+            keys.add(topicKey.split(ScheduleConstants.TOPIC)[1]);
+        }
+        return keys;
+    }
+
+    /**
+     * 从已登记的future键和topic键中解析出各任务类型的优先级
+     */
+    @Scheduled(fixedDelay = 5000)
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void loadTypePriorities() {
+        Map<Integer, Set<Integer>> result = new HashMap<>();
+        for (String key : registeredKeys()) {
+            String[] parts = key.split("_");
+            if(parts.length!=2){
+                continue;
+            }
+            try {
+                result.computeIfAbsent(Integer.parseInt(parts[0]), k -> new TreeSet<>()).add(Integer.parseInt(parts[1]));
+            }catch (NumberFormatException e){
+                log.warn("invalid schedule key {}",key);
+            }
+        }
+        typePriorities = result;
+    }
+
+    /**
+     * 批量拉取任务并加租约
+     * 通过脚本将topic队列中的任务原子地转移到lease队列，数据库中一次更新标记为租约状态，
+     * 未在租约到期前确认的任务由requeueExpiredLeases重新放回topic队列
+     * @param type 任务类型
+     * @param priority 任务优先级
+     * @param maxBatch 单次最多拉取的任务数
+     * @param leaseMillis 租约时长，毫秒
+     * @return 拉取到的任务列表，没有任务时返回空列表
+     */
+    @Override
+    public List<Task> poll(int type, int priority, int maxBatch, long leaseMillis) {
+        List<Task> tasks = new ArrayList<>();
+        if(maxBatch<=0||leaseMillis<=0){
+            return tasks;
+        }
+        Timer.Sample sample = scheduleMetrics.startTimer();
+        try {
+            String key = type + "_" + priority;
+            long leaseExpireTime = System.currentTimeMillis() + leaseMillis;
+            List<String> taskIds = cacheService.lRightPopToZSet(ScheduleConstants.TOPIC + key,
+                    ScheduleConstants.LEASE + key, maxBatch, leaseExpireTime);
+            if(taskIds!=null&&!taskIds.isEmpty()){
+                cacheService.sAdd(ScheduleConstants.LEASE_KEYS, ScheduleConstants.LEASE + key);
+                tasks = updateDbLeased(ScheduleConstants.LEASE + key, taskIds);
+                scheduleMetrics.recordFireLag(tasks);
+            }
+        }catch (Exception e){
+            e.printStackTrace();
+            log.error("poll batch task exception");
+        }finally {
+            sample.stop(scheduleMetrics.getBatchPollTimer());
+        }
+        return tasks;
+    }
+
+    /**
+     * 长轮询拉取任务
+     * 队列中有任务时与批量拉取一致；队列为空时阻塞等待，直到有任务到达或超时。
+     * 阻塞期间不应持有数据库连接，因此该方法不开启事务，数据库更新在拿到任务后单独开启事务
+     * @param type 任务类型
+     * @param priority 任务优先级
+     * @param maxBatch 单次最多拉取的任务数
+     * @param leaseMillis 租约时长，毫秒
+     * @param timeoutMillis 最长等待时间，毫秒，限制在[MIN_LONG_POLL_MILLIS, MAX_LONG_POLL_MILLIS]之间
+     * @return 拉取到的任务列表，超时返回空列表
+     */
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<Task> longPoll(int type, int priority, int maxBatch, long leaseMillis, long timeoutMillis) {
+        List<Task> tasks = new ArrayList<>();
+        if(maxBatch<=0||leaseMillis<=0){
+            return tasks;
+        }
+        try {
+            String key = type + "_" + priority;
+            List<String> taskIds = cacheService.lRightPopToZSet(ScheduleConstants.TOPIC + key,
+                    ScheduleConstants.LEASE + key, maxBatch, System.currentTimeMillis() + leaseMillis);
+            if(taskIds==null||taskIds.isEmpty()){
+                // 队列为空，阻塞等待第一个任务；弹出的同时原子地放入claiming列表，再通过脚本从claiming转入lease队列，
+                // 两步之间节点崩溃时任务留在claiming列表，由requeueExpiredLeases放回topic队列，不会丢失
+                long timeout = Math.min(Math.max(timeoutMillis, MIN_LONG_POLL_MILLIS), MAX_LONG_POLL_MILLIS);
+                String taskId = cacheService.lBRightPopAndLeftPush(ScheduleConstants.TOPIC + key,
+                        ScheduleConstants.CLAIMING + key, timeout, TimeUnit.MILLISECONDS);
+                if(StringUtils.isBlank(taskId)){
+                    return tasks;
+                }
+                long leaseExpireTime = System.currentTimeMillis() + leaseMillis;
+                taskIds = new ArrayList<>();
+                // 转入失败说明已被放回topic队列
+                if(cacheService.lRemoveToZSet(ScheduleConstants.CLAIMING + key, ScheduleConstants.LEASE + key,
+                        taskId, leaseExpireTime)){
+                    taskIds.add(taskId);
+                }
+                if(maxBatch>taskIds.size()){
+                    taskIds.addAll(cacheService.lRightPopToZSet(ScheduleConstants.TOPIC + key,
+                            ScheduleConstants.LEASE + key, maxBatch - taskIds.size(), leaseExpireTime));
+                }
+                if(taskIds.isEmpty()){
+                    return tasks;
+                }
+            }
+            // 登记lease键，requeueExpiredLeases和指标采样据此遍历
+            cacheService.sAdd(ScheduleConstants.LEASE_KEYS, ScheduleConstants.LEASE + key);
+            List<String> leasedIds = taskIds;
+            tasks = transactionTemplate.execute(status -> updateDbLeased(ScheduleConstants.LEASE + key, leasedIds));
+            scheduleMetrics.recordFireLag(tasks);
+        }catch (Exception e){
+            e.printStackTrace();
+            log.error("long poll task exception");
+        }
+        return tasks;
+    }
+
+    /**
+     * 将已转入lease队列的任务在数据库中标记为租约中
+     * 一次查询出任务，再逐个以版本号和SCHEDULED状态为条件更新为LEASED，只有更新成功的任务属于本次租约，
+     * 重复的id或已被其他调用加租约的任务不会再次返回；
+     * 已执行、已取消、已进入死信队列的任务从lease队列移除；查不到的任务可能是尚未提交的新任务，
+     * 与已被其他调用加租约的任务一样保留lease记录，租约到期后由requeueExpiredLeases处理
+     * @param leaseKey  lease队列的键
+     * @param members   lease队列中的任务id
+     * @return 成功加租约的任务列表，顺序与拉取顺序一致
+     */
+    private List<Task> updateDbLeased(String leaseKey, List<String> members) {
+        Set<Long> taskIds = new LinkedHashSet<>(members.size());
+        for (String member : members) {
+            taskIds.add(Long.parseLong(member));
+        }
+        Map<Long, TaskinfoLogs> taskinfoLogsMap = new HashMap<>();
+        for (TaskinfoLogs taskinfoLogs : taskinfoLogsMapper.selectBatchIds(taskIds)) {
+            taskinfoLogsMap.put(taskinfoLogs.getTaskId(), taskinfoLogs);
+        }
+        List<Task> tasks = new ArrayList<>(taskIds.size());
+        List<Long> leasedIds = new ArrayList<>(taskIds.size());
+        for (Long taskId : taskIds) {
+            TaskinfoLogs taskinfoLogs = taskinfoLogsMap.get(taskId);
+            if(taskinfoLogs!=null&&Integer.valueOf(ScheduleConstants.SCHEDULED).equals(taskinfoLogs.getStatus())){
+                int updated = taskinfoLogsMapper.update(null, Wrappers.<TaskinfoLogs>lambdaUpdate()
+                        .set(TaskinfoLogs::getStatus, ScheduleConstants.LEASED)
+                        .setSql("version = version + 1")
+                        .eq(TaskinfoLogs::getTaskId, taskId)
+                        .eq(TaskinfoLogs::getVersion, taskinfoLogs.getVersion())
+                        .eq(TaskinfoLogs::getStatus, ScheduleConstants.SCHEDULED));
+                if(updated>0){
+                    taskinfoLogs.setStatus(ScheduleConstants.LEASED);
+                    taskinfoLogs.setVersion(taskinfoLogs.getVersion() + 1);
+                    tasks.add(toTask(taskinfoLogs));
+                    leasedIds.add(taskId);
+                }
+            }else if(taskinfoLogs!=null&&isTerminal(taskinfoLogs.getStatus())){
+                cacheService.zRemove(leaseKey, String.valueOf(taskId));
+            }
+        }
+        // 删除taskinfo中的记录
+        if(!leasedIds.isEmpty()){
+            taskinfoMapper.deleteBatchIds(leasedIds);
+        }
+        return tasks;
+    }
+
+    /**
+     * 确认租约中的任务已执行
+     * 以版本号和LEASED状态为条件更新为已执行，提交成功后才从lease队列移除，
+     * 与租约到期重新调度并发时只有一方的状态转换生效
+     * @param taskIds 任务id列表
+     * @return 确认成功的任务数
+     */
+    @Override
+    public int ack(List<Long> taskIds) {
+        if(taskIds==null||taskIds.isEmpty()){
+            return 0;
+        }
+        List<Long> ackIds = new ArrayList<>();
+        for (TaskinfoLogs taskinfoLogs : taskinfoLogsMapper.selectBatchIds(new LinkedHashSet<>(taskIds))) {
+            if(!Integer.valueOf(ScheduleConstants.LEASED).equals(taskinfoLogs.getStatus())){
+                continue;
+            }
+            int updated = taskinfoLogsMapper.update(null, Wrappers.<TaskinfoLogs>lambdaUpdate()
+                    .set(TaskinfoLogs::getStatus, ScheduleConstants.EXECUTED)
+                    .setSql("version = version + 1")
+                    .eq(TaskinfoLogs::getTaskId, taskinfoLogs.getTaskId())
+                    .eq(TaskinfoLogs::getVersion, taskinfoLogs.getVersion())
+                    .eq(TaskinfoLogs::getStatus, ScheduleConstants.LEASED));
+            if(updated==0){
+                continue;
+            }
+            String key = taskinfoLogs.getTaskType() + "_" + taskinfoLogs.getPriority();
+            afterCommit(() -> cacheService.zRemove(ScheduleConstants.LEASE + key, String.valueOf(taskinfoLogs.getTaskId())));
+            ackIds.add(taskinfoLogs.getTaskId());
+        }
+        if(ackIds.isEmpty()){
+            return 0;
+        }
+        // 执行成功并提交后清除失败次数，提交失败时任务仍为LEASED，失败次数需保留
+        Object[] fields = ackIds.stream().map(String::valueOf).toArray();
+        afterCommit(() -> cacheService.hDelete(ScheduleConstants.TASK_ATTEMPTS, fields));
+        return ackIds.size();
+    }
+
+    /**
+     * 单个任务最多失败次数，超过后进入死信队列
+     */
+    @Value("${schedule.retry.max-attempts:5}")
+    private int maxAttempts;
+
+    /**
+     * 第一次重试的延迟，之后每次翻倍，毫秒
+     */
+    @Value("${schedule.retry.base-delay-millis:10000}")
+    private long baseDelayMillis;
+
+    /**
+     * 重试延迟上限，毫秒
+     */
+    @Value("${schedule.retry.max-delay-millis:3600000}")
+    private long maxDelayMillis;
+
+    /**
+     * 上报任务执行失败
+     * 只处理租约中的任务，状态转换成功并提交后才从lease队列移除；
+     * 租约已过期被requeueExpiredLeases处理、已确认或通过poll拉取的任务不再处理
+     * @param taskIds 任务id列表
+     * @return 处理成功的任务数
+     */
+    @Override
+    public int fail(List<Long> taskIds) {
+        if(taskIds==null||taskIds.isEmpty()){
+            return 0;
+        }
+        int count = 0;
+        for (TaskinfoLogs taskinfoLogs : taskinfoLogsMapper.selectBatchIds(new LinkedHashSet<>(taskIds))) {
+            if(!Integer.valueOf(ScheduleConstants.LEASED).equals(taskinfoLogs.getStatus())){
+                continue;
+            }
+            if(retryOrDeadLetter(taskinfoLogs)){
+                String leaseKey = ScheduleConstants.LEASE + taskinfoLogs.getTaskType() + "_" + taskinfoLogs.getPriority();
+                String member = String.valueOf(taskinfoLogs.getTaskId());
+                afterCommit(() -> cacheService.zRemove(leaseKey, member));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 记录一次失败，未超过重试上限时按指数退避重新调度，否则放入死信队列
+     * 状态转换以版本号和LEASED状态为条件，并发上报同一任务只有一方生效，
+     * 失败次数和死信队列在状态转换提交后才写入
+     * @param taskinfoLogs 租约中的任务日志
+     * @return 是否处理成功
+     */
+    private boolean retryOrDeadLetter(TaskinfoLogs taskinfoLogs) {
+        long taskId = taskinfoLogs.getTaskId();
+        String field = String.valueOf(taskId);
+        String key = taskinfoLogs.getTaskType() + "_" + taskinfoLogs.getPriority();
+        Object failed = cacheService.hGet(ScheduleConstants.TASK_ATTEMPTS, field);
+        long attempts = (failed == null ? 0L : Long.parseLong(failed.toString())) + 1;
+
+        if(attempts>maxAttempts){
+            int updated = taskinfoLogsMapper.update(null, Wrappers.<TaskinfoLogs>lambdaUpdate()
+                    .set(TaskinfoLogs::getStatus, ScheduleConstants.DEAD)
+                    .setSql("version = version + 1")
+                    .eq(TaskinfoLogs::getTaskId, taskId)
+                    .eq(TaskinfoLogs::getVersion, taskinfoLogs.getVersion())
+                    .eq(TaskinfoLogs::getStatus, ScheduleConstants.LEASED));
+            if(updated==0){
+                return false;
+            }
+            afterCommit(() -> {
+                cacheService.lLeftPush(ScheduleConstants.DEAD_LETTER + key, field);
+                cacheService.sAdd(ScheduleConstants.DEAD_LETTER_KEYS, ScheduleConstants.DEAD_LETTER + key);
+                cacheService.hDelete(ScheduleConstants.TASK_ATTEMPTS, field);
+            });
+            log.warn("任务失败{}次，放入死信队列{}，taskid={}",attempts-1,ScheduleConstants.DEAD_LETTER+key,taskId);
+            return true;
+        }
+
+        // 延迟按失败次数翻倍，位移量限制在62以内防止溢出
+        long delay = Math.min(baseDelayMillis << Math.min(attempts - 1, 62), maxDelayMillis);
+        if(delay<=0){
+            delay = maxDelayMillis;
+        }
+        Date executeTime = new Date(System.currentTimeMillis() + delay);
+        int updated = taskinfoLogsMapper.update(null, Wrappers.<TaskinfoLogs>lambdaUpdate()
+                .set(TaskinfoLogs::getStatus, ScheduleConstants.SCHEDULED)
+                .set(TaskinfoLogs::getExecuteTime, executeTime)
+                .setSql("version = version + 1")
+                .eq(TaskinfoLogs::getTaskId, taskId)
+                .eq(TaskinfoLogs::getVersion, taskinfoLogs.getVersion())
+                .eq(TaskinfoLogs::getStatus, ScheduleConstants.LEASED));
+        if(updated==0){
+            return false;
+        }
+        afterCommit(() -> cacheService.hIncrBy(ScheduleConstants.TASK_ATTEMPTS, field, 1));
+        // 恢复taskinfo记录，超出5分钟窗口的重试由reloadData在到期前加载
+        Taskinfo taskinfo = new Taskinfo();
+        BeanUtils.copyProperties(taskinfoLogs,taskinfo);
+        taskinfo.setExecuteTime(executeTime);
+        taskinfoMapper.insert(taskinfo);
+
+        Task task = toTask(taskinfoLogs);
+        task.setExecuteTime(executeTime.getTime());
+        addTaskToCache(task);
+        log.info("任务第{}次失败，{}毫秒后重试，taskid={}",attempts,delay,taskId);
+        return true;
+    }
+
+    /**
+     * 租约到期的任务按失败处理
+     * 每秒执行一次，只处理分配给当前节点的键，租约到期且状态转换成功的任务计一次失败，
+     * 按退避策略重新调度或放入死信队列，消费方反复崩溃的任务不会无限重试；
+     * 同时将长轮询留在claiming列表中的任务放回topic队列，转入lease队列后未能标记为LEASED的任务同样放回topic队列
+     */
+    @Scheduled(fixedRate = 1000)
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void requeueExpiredLeases() {
+        // 长轮询弹出后未能转入lease队列的任务放回topic队列
+        Set<String> registeredKeys = registeredKeys();
+        for (String key : registeredKeys) {
+            if(scheduleShardManager.owns(key)){
+                long count = cacheService.lDrainToRight(ScheduleConstants.CLAIMING + key, ScheduleConstants.TOPIC + key);
+                if(count>0){
+                    log.info("{}中{}个未加租约的任务放回{}",ScheduleConstants.CLAIMING+key,count,ScheduleConstants.TOPIC+key);
+                }
+            }
+        }
+        // lease键只由topic键派生，登记集合之外再补上已登记topic/future键对应的lease键，兼容登记之前产生的lease键
+        Set<String> leaseKeys = new HashSet<>(cacheService.setMembers(ScheduleConstants.LEASE_KEYS));
+        for (String key : registeredKeys) {
+            leaseKeys.add(ScheduleConstants.LEASE + key);
+        }
+        for (String leaseKey : leaseKeys) {
+            String key = leaseKey.split(ScheduleConstants.LEASE)[1];
+            if(!scheduleShardManager.owns(key)){
+                continue;
+            }
+            Set<String> members = cacheService.zRangeByScore(leaseKey, 0, System.currentTimeMillis());
+            if(members==null||members.isEmpty()){
+                continue;
+            }
+            List<Long> taskIds = new ArrayList<>(members.size());
+            for (String member : members) {
+                taskIds.add(Long.parseLong(member));
+            }
+            Map<Long, TaskinfoLogs> taskinfoLogsMap = new HashMap<>();
+            for (TaskinfoLogs taskinfoLogs : taskinfoLogsMapper.selectBatchIds(taskIds)) {
+                taskinfoLogsMap.put(taskinfoLogs.getTaskId(), taskinfoLogs);
+            }
+            String topicKey = ScheduleConstants.TOPIC + key;
+            int count = 0;
+            for (Long taskId : taskIds) {
+                TaskinfoLogs taskinfoLogs = taskinfoLogsMap.get(taskId);
+                String member = String.valueOf(taskId);
+                if(taskinfoLogs==null||isTerminal(taskinfoLogs.getStatus())){
+                    // 已结束或已不存在，lease记录是残留的
+                    cacheService.zRemove(leaseKey, member);
+                }else if(Integer.valueOf(ScheduleConstants.SCHEDULED).equals(taskinfoLogs.getStatus())){
+                    // 转入lease队列后未能标记为LEASED(节点崩溃或事务失败)，放回topic队列重新拉取
+                    cacheService.zMoveToList(leaseKey, topicKey, member, System.currentTimeMillis());
+                }else if(Integer.valueOf(ScheduleConstants.LEASED).equals(taskinfoLogs.getStatus())){
+                    // 每个任务单独一个事务，以数据库的条件更新判定归属，与ack、fail并发时只有一方生效，
+                    // 状态转换提交后才移除lease记录，单个任务失败不影响其他任务
+                    try {
+                        Boolean requeued = transactionTemplate.execute(status -> {
+                            if(!retryOrDeadLetter(taskinfoLogs)){
+                                return false;
+                            }
+                            afterCommit(() -> cacheService.zRemove(leaseKey, member));
+                            return true;
+                        });
+                        if(Boolean.TRUE.equals(requeued)){
+                            count++;
+                        }
+                    }catch (Exception e){
+                        log.error("requeue expired lease exception, taskid={}",taskId,e);
+                    }
+                }
+            }
+            log.info("租约到期，{}中{}个任务重新调度",leaseKey,count);
+        }
+    }
+
+    /**
+     * 增量同步时，查询窗口向高水位之前回退的时长，兜底写缓存失败等情况
+     */
+    private static final long RELOAD_OVERLAP_MILLIS = 60 * 1000;
+
+    /**
+     * 同步数据库数据到缓存中
      * 此方法会在以下两个时机被调用：
      * 1. 应用启动时（通过@PostConstruct注解）
-     * 2. 每5分钟定时执行一次
-     * 方法主要功能：
-     * 1. 清空现有缓存
-     * 2. 从数据库查询5分钟内需要执行的任务
-     * 3. 将查询到的任务数据转换并添加到缓存中
+     * 2. 每分钟定时执行一次
+     * 不会清空已有缓存，以redis中记录的高水位(已同步到的execute_time)为界增量同步：
+     * 1. 只查询execute_time在(高水位-回退时长, 当前时间+5分钟]之间的任务
+     * 2. 查询窗口的起点仍在未来，这些任务只可能在future键中，重复写入zset是幂等的
+     * 3. 高水位不存在或已经过期(缓存丢失、服务长时间停止)时做一次全量对账，
+     *    已在topic或lease队列中的任务跳过，避免重复执行
+     * 所有任务都写入future键，到期的任务由refresh转移到topic键
      */
-    @Scheduled(cron = "0 */5 * * * ?")
+    @Scheduled(cron = "0 */1 * * * ?")
     @PostConstruct
     public void reloadData() {
-        // 清空缓存数据
-        clearCache();
-        log.info("数据库数据同步到缓存");
-
-        // 计算5分钟后的时间，用于查询即将执行的任务
+        String token = cacheService.tryLock("FUTURE_TASK_RELOAD", 1000 * 30);
+        if(StringUtils.isBlank(token)){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        // 计算5分钟后的时间，作为新的高水位
         Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
         calendar.add(Calendar.MINUTE,5);
+        long newHighWaterMark = calendar.getTimeInMillis();
 
-        // 查询execute_time小于5分钟后时间的所有任务
-        List<Taskinfo> allTasks = taskinfoMapper.selectList(Wrappers.<Taskinfo>lambdaQuery()
-                .lt(Taskinfo::getExecuteTime, calendar.getTime()));
+        String highWaterMarkStr = cacheService.get(ScheduleConstants.RELOAD_HIGH_WATER_MARK);
+        boolean incremental = StringUtils.isNotBlank(highWaterMarkStr)
+                && Long.parseLong(highWaterMarkStr) - RELOAD_OVERLAP_MILLIS > now;
 
-        // 将查询到的任务信息转换为Task对象并添加到缓存
-        if(allTasks!=null&&allTasks.size()>0){
-            for (Taskinfo taskinfo : allTasks){
-                Task task = new Task();
-                BeanUtils.copyProperties(taskinfo,task);
-                task.setExecuteTime(taskinfo.getExecuteTime().getTime());
-                addTaskToCache(task);
+        List<Taskinfo> taskinfos;
+        if(incremental){
+            long from = Long.parseLong(highWaterMarkStr) - RELOAD_OVERLAP_MILLIS;
+            taskinfos = taskinfoMapper.selectList(Wrappers.<Taskinfo>lambdaQuery()
+                    .gt(Taskinfo::getExecuteTime, new Date(from))
+                    .le(Taskinfo::getExecuteTime, new Date(newHighWaterMark)));
+        }else {
+            taskinfos = taskinfoMapper.selectList(Wrappers.<Taskinfo>lambdaQuery()
+                    .le(Taskinfo::getExecuteTime, new Date(newHighWaterMark)));
+        }
+
+        List<Task> tasks = new ArrayList<>(taskinfos.size());
+        for (Taskinfo taskinfo : taskinfos){
+            Task task = new Task();
+            BeanUtils.copyProperties(taskinfo,task);
+            task.setExecuteTime(taskinfo.getExecuteTime().getTime());
+            tasks.add(task);
+        }
+        if(!incremental){
+            tasks = excludeQueuedTasks(tasks);
+        }
+        addTasksToFuture(tasks);
+        cacheService.set(ScheduleConstants.RELOAD_HIGH_WATER_MARK, String.valueOf(newHighWaterMark));
+        log.info("数据库数据同步到缓存，{}同步，任务数：{}", incremental ? "增量" : "全量", tasks.size());
+    }
+
+    /**
+     * 过滤掉已经在topic队列或lease队列中的任务
+     * @param tasks 待同步的任务
+     * @return 需要写入缓存的任务
+     */
+    private List<Task> excludeQueuedTasks(List<Task> tasks) {
+        Map<String, Set<String>> queuedByKey = new HashMap<>();
+        List<Task> result = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            String key = task.getTaskType() + "_" + task.getPriority();
+            Set<String> queued = queuedByKey.computeIfAbsent(key, k -> {
+                Set<String> values = new HashSet<>(cacheService.lRange(ScheduleConstants.TOPIC + k, 0, -1));
+                values.addAll(cacheService.zRangeAll(ScheduleConstants.LEASE + k));
+                return values;
+            });
+            if(!queued.contains(String.valueOf(task.getTaskId()))){
+                result.add(task);
             }
         }
+        return result;
     }
 
     /**
-     * 清除缓存中的定时任务相关数据
-     * 该方法会扫描并删除所有以ScheduleConstants.FUTURE和ScheduleConstants.TOPIC为前缀的缓存键
+     * 通过一次管道将任务写入future键，并登记future键
+     * @param tasks 任务列表
      */
-    private void clearCache(){
-        // 扫描所有future相关的缓存键
-        Set<String> futureKeys = cacheService.scan(ScheduleConstants.FUTURE + "*");
-        // 扫描所有topic相关的缓存键
-        Set<String> topicKeys = cacheService.scan(ScheduleConstants.TOPIC + "*");
-        // 删除future相关的缓存数据
-        cacheService.delete(futureKeys);
-        // 删除topic相关的缓存数据
-        cacheService.delete(topicKeys);
+    private void addTasksToFuture(List<Task> tasks) {
+        if(tasks.isEmpty()){
+            return;
+        }
+        Map<String, Map<String, Double>> futureValues = new HashMap<>();
+        for (Task task : tasks) {
+            String key = task.getTaskType() + "_" + task.getPriority();
+            futureValues.computeIfAbsent(ScheduleConstants.FUTURE+key, k -> new HashMap<>())
+                    .put(String.valueOf(task.getTaskId()), (double) task.getExecuteTime());
+        }
+        cacheService.addWithPipeline(Collections.emptyMap(),futureValues);
+        cacheService.sAdd(ScheduleConstants.FUTURE_KEYS, futureValues.keySet().toArray(new String[0]));
+        scheduleOnTimingWheel(futureValues);
     }
 
+    /**
+     * 开启时间轮时，将写入future键的任务同时加入时间轮
+     * @param futureValues future键 -> (任务id -> 执行时间)
+     */
+    private void scheduleOnTimingWheel(Map<String, Map<String, Double>> futureValues) {
+        if(taskTimingWheel==null){
+            return;
+        }
+        for (Map.Entry<String, Map<String, Double>> entry : futureValues.entrySet()) {
+            for (Map.Entry<String, Double> member : entry.getValue().entrySet()) {
+                taskTimingWheel.schedule(entry.getKey(), member.getKey(), member.getValue().longValue());
+            }
+        }
+    }
+
+    /**
+     * 单个future键每次脚本调用最多转移的任务数
+     */
+    private static final int REFRESH_BATCH_SIZE = 1000;
+
     /**
      * 定时刷新任务缓存
-     * 该方法通过cron表达式每分钟执行一次，扫描所有future开头的缓存键，
-     * 将到达执行时间的任务从future键刷新到对应的topic键中
+     * 按schedule.refresh.interval(毫秒，默认500)的间隔执行，遍历已登记的future键，
+     * 每个键通过一次脚本调用将到期任务从future键原子地转移到对应的topic键中。
+     * future键按type_priority分片给存活的调度节点，每个节点只处理自己负责的键，
+     * 脚本保证同一任务只会被转移一次，分片切换期间多个节点处理同一个键也不会重复；
+     * 该方法不访问数据库，不开启事务
      */
-    @Scheduled(cron = "0 */1 * * * ?")
+    @Scheduled(fixedDelayString = "${schedule.refresh.interval:500}")
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void refresh() {
-        String token = cacheService.tryLock("FUTURE_TASK_SYNC", 1000 * 30);
-        if(StringUtils.isNotBlank(token)){
-            System.out.println(System.currentTimeMillis()/1000+"执行了定时任务");
-            // 扫描所有future开头的缓存键
-            Set<String> futureKeys = cacheService.scan(ScheduleConstants.FUTURE + "*");
-            // 遍历所有future键，处理到期的任务
-            for (String futureKey : futureKeys){
-                // 构造对应的topic键名
-                String topicKey = ScheduleConstants.TOPIC + futureKey.split(ScheduleConstants.FUTURE)[1];
-                // 获取当前时间之前的所有任务
-                Set<String> tasks = cacheService.zRangeByScore(futureKey, 0, System.currentTimeMillis());
-                // 如果存在需要执行的任务，则刷新到topic键中
-                if(!tasks.isEmpty()){
-                    cacheService.refreshWithPipeline(futureKey,topicKey,tasks);
-                    System.out.println("成功的将" + futureKey + "下的当前需要执行的任务数据刷新到" + topicKey + "下");
-                }
+        Timer.Sample sample = scheduleMetrics.startTimer();
+        Set<String> futureKeys = cacheService.setMembers(ScheduleConstants.FUTURE_KEYS);
+        for (String futureKey : futureKeys){
+            String key = futureKey.split(ScheduleConstants.FUTURE)[1];
+            // 只处理分配给当前节点的键
+            if(!scheduleShardManager.owns(key)){
+                continue;
             }
+            // 构造对应的topic键名
+            String topicKey = ScheduleConstants.TOPIC + key;
+            long now = System.currentTimeMillis();
+            int moved;
+            do {
+                List<String> tasks = cacheService.zMoveByScoreToList(futureKey, topicKey, now, REFRESH_BATCH_SIZE);
+                moved = tasks == null ? 0 : tasks.size();
+                if(moved>0){
+                    log.info("成功的将{}下{}个当前需要执行的任务数据刷新到{}下", futureKey, moved, topicKey);
+                }
+            } while (moved >= REFRESH_BATCH_SIZE);
         }
-
+        sample.stop(scheduleMetrics.getRefreshTimer());
     }
 
     /**
      * 从缓存中移除任务
-     * 根据任务的执行时间和类型优先级，从相应的缓存队列中移除任务
+     * 队列中只保存任务id，不需要重新序列化任务；任务到期后可能尚未被转移到topic键，两个队列都要移除
      * @param task 需要移除的任务对象
      */
     private void removeTaskFromCache(Task task) {
         String key = task.getTaskType() + "_" + task.getPriority();
-        // 判断任务是否已经到期
-        if(task.getExecuteTime()<=System.currentTimeMillis()){
-            // 从当前任务队列中移除任务
-            cacheService.lRemove(ScheduleConstants.TOPIC+key,0,JSON.toJSONString(task));
-        }else {
-            // 从未来任务队列中移除任务
-            cacheService.zRemove(ScheduleConstants.FUTURE+key,JSON.toJSONString(task));
-        }
+        String member = String.valueOf(task.getTaskId());
+        // 从未来任务队列中移除任务
+        cacheService.zRemove(ScheduleConstants.FUTURE+key,member);
+        // 从当前任务队列中移除任务
+        cacheService.lRemove(ScheduleConstants.TOPIC+key,0,member);
     }
 
 
     /**
      * 更新数据库中的任务状态
+     * 以一条带版本号和状态条件的update完成SCHEDULED到目标状态的转换，
+     * 只有更新成功(抢到状态转换)时才删除taskinfo中的记录，并发的拉取和取消只会有一方成功
      * @param taskId 任务ID
      * @param status 新的任务状态
-     * @return 更新后的任务对象，如果更新失败则返回null
+     * @return 更新后的任务对象，如果任务不存在、状态已变更或版本冲突则返回null
      */
     private Task updateDb(long taskId, int status) {
         Task task=null;
         try {
+            TaskinfoLogs taskinfoLogs = taskinfoLogsMapper.selectById(taskId);
+            if(taskinfoLogs==null||!Integer.valueOf(ScheduleConstants.SCHEDULED).equals(taskinfoLogs.getStatus())){
+                return null;
+            }
+            // 条件更新，版本号不一致说明已被其他操作修改
+            int updated = taskinfoLogsMapper.update(null, Wrappers.<TaskinfoLogs>lambdaUpdate()
+                    .set(TaskinfoLogs::getStatus, status)
+                    .setSql("version = version + 1")
+                    .eq(TaskinfoLogs::getTaskId, taskId)
+                    .eq(TaskinfoLogs::getVersion, taskinfoLogs.getVersion())
+                    .eq(TaskinfoLogs::getStatus, ScheduleConstants.SCHEDULED));
+            if(updated==0){
+                log.info("task state changed concurrently, taskid={}",taskId);
+                return null;
+            }
             // 删除taskinfo表中的记录
             taskinfoMapper.deleteById(taskId);
 
-            // 查询并更新taskinfo_logs表中的状态
-            TaskinfoLogs taskinfoLogs = taskinfoLogsMapper.selectById(taskId);
-            taskinfoLogs.setStatus(status);
-            taskinfoLogsMapper.updateById(taskinfoLogs);
-
             // 将TaskinfoLogs对象转换为Task对象
-            task = new Task();
-            BeanUtils.copyProperties(taskinfoLogs,task);
-            task.setExecuteTime(taskinfoLogs.getExecuteTime().getTime());
+            task = toTask(taskinfoLogs);
         }catch (Exception e){
-            log.error("task cancel exception taskid={}",taskId);
+            log.error("task update exception taskid={}",taskId);
         }
         return task;
     }
 
+    /**
+     * 将TaskinfoLogs对象转换为Task对象
+     * @param taskinfoLogs 任务日志
+     * @return 任务对象
+     */
+    private Task toTask(TaskinfoLogs taskinfoLogs) {
+        Task task = new Task();
+        BeanUtils.copyProperties(taskinfoLogs,task);
+        task.setExecuteTime(taskinfoLogs.getExecuteTime().getTime());
+        return task;
+    }
+
 
     @Resource
     private CacheService cacheService;
     /**
      * 将任务添加到缓存中
-     * 根据任务的执行时间和优先级，将任务存储到不同的缓存队列中
+     * 根据任务的执行时间和优先级，将任务id存储到不同的缓存队列中，任务数据以数据库为准
      * @param task 需要添加到缓存的任务对象
      */
     private void addTaskToCache(Task task) {
-        String key = task.getTaskType() + "_" + task.getPriority();
+        addTasksToCache(Collections.singletonList(task));
+    }
+
+    /**
+     * 批量将任务添加到缓存中
+     * 队列中只有任务id，消费方拿到id后以数据库记录为准，有事务时在提交后写入，避免id先于数据库记录可见
+     * @param tasks 需要添加到缓存的任务列表
+     */
+    private void addTasksToCache(List<Task> tasks) {
+        afterCommit(() -> doAddTasksToCache(tasks));
+    }
+
+    /**
+     * 任务是否已结束，已结束的任务不再需要lease记录
+     */
+    private boolean isTerminal(Integer status) {
+        return Integer.valueOf(ScheduleConstants.EXECUTED).equals(status)
+                || Integer.valueOf(ScheduleConstants.CANCELLED).equals(status)
+                || Integer.valueOf(ScheduleConstants.DEAD).equals(status);
+    }
 
+    /**
+     * 有事务时在提交后执行，否则立即执行
+     * @param action 缓存写入等不能先于数据库提交生效的操作
+     */
+    private void afterCommit(Runnable action) {
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        }else {
+            action.run();
+        }
+    }
+
+    /**
+     * 批量将任务添加到缓存中，所有写操作通过一次管道提交
+     * 已到期的任务id存储到topic列表左侧，5分钟内需要执行的任务id存储到future有序集合中
+     * @param tasks 需要添加到缓存的任务列表
+     */
+    private void doAddTasksToCache(List<Task> tasks) {
         // 计算5分钟后的调度时间
         Calendar calendar = Calendar.getInstance();
         calendar.add(Calendar.MINUTE,5);
         long nextScheduleTime = calendar.getTimeInMillis();
+        long now = System.currentTimeMillis();
 
-        // 根据任务执行时间判断存储方式
-        if(task.getExecuteTime()<=System.currentTimeMillis()){
-            // 立即执行的任务存储到列表左侧
-            cacheService.lLeftPush(ScheduleConstants.TOPIC+key, JSON.toJSONString(task));
-        } else if (task.getExecuteTime() <= nextScheduleTime) {
-            // 5分钟内需要执行的任务存储到有序集合中
-            cacheService.zAdd(ScheduleConstants.FUTURE+key,JSON.toJSONString(task),task.getExecuteTime());
+        Map<String, List<String>> topicValues = new HashMap<>();
+        Map<String, Map<String, Double>> futureValues = new HashMap<>();
+        for (Task task : tasks) {
+            String key = task.getTaskType() + "_" + task.getPriority();
+            if(task.getExecuteTime()<=now){
+                topicValues.computeIfAbsent(ScheduleConstants.TOPIC+key, k -> new ArrayList<>())
+                        .add(String.valueOf(task.getTaskId()));
+            } else if (task.getExecuteTime() <= nextScheduleTime) {
+                futureValues.computeIfAbsent(ScheduleConstants.FUTURE+key, k -> new HashMap<>())
+                        .put(String.valueOf(task.getTaskId()), (double) task.getExecuteTime());
+            }
+        }
+        if(!topicValues.isEmpty()||!futureValues.isEmpty()){
+            cacheService.addWithPipeline(topicValues,futureValues);
+        }
+        if(!topicValues.isEmpty()){
+            // 登记topic键，pollAny据此发现同一类型下的所有优先级
+            cacheService.sAdd(ScheduleConstants.TOPIC_KEYS, topicValues.keySet().toArray(new String[0]));
+        }
+        if(!futureValues.isEmpty()){
+            // 登记future键，定时刷新时无需扫描整个键空间
+            cacheService.sAdd(ScheduleConstants.FUTURE_KEYS, futureValues.keySet().toArray(new String[0]));
+            scheduleOnTimingWheel(futureValues);
         }
     }
 
@@ -290,4 +966,41 @@ public class TaskServiceImpl implements TaskService {
         return flag;
     }
 
+    /**
+     * 批量将任务信息添加到数据库中
+     * 任务id提前生成，taskinfo和taskinfo_logs各执行一条多值insert
+     * @param tasks 需要添加的任务列表
+     * @return 添加成功返回true，失败返回false
+     */
+    private boolean addTasksToDb(List<Task> tasks) {
+        boolean flag=false;
+        try {
+            List<Taskinfo> taskinfos = new ArrayList<>(tasks.size());
+            List<TaskinfoLogs> taskinfoLogsList = new ArrayList<>(tasks.size());
+            for (Task task : tasks) {
+                // 多值insert无法回填主键，这里提前生成任务id
+                Taskinfo taskinfo = new Taskinfo();
+                BeanUtils.copyProperties(task,taskinfo);
+                taskinfo.setTaskId(IdWorker.getId());
+                taskinfo.setExecuteTime(new Date(task.getExecuteTime()));
+                taskinfos.add(taskinfo);
+                task.setTaskId(taskinfo.getTaskId());
+
+                TaskinfoLogs taskinfoLogs = new TaskinfoLogs();
+                BeanUtils.copyProperties(taskinfo,taskinfoLogs);
+                taskinfoLogs.setVersion(1);
+                taskinfoLogs.setStatus(ScheduleConstants.SCHEDULED);
+                taskinfoLogsList.add(taskinfoLogs);
+            }
+            taskinfoMapper.insertBatch(taskinfos);
+            taskinfoLogsMapper.insertBatch(taskinfoLogsList);
+            flag=true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            // 异常被吞掉不会触发回滚，手动标记，避免只写入一张表
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+        }
+        return flag;
+    }
+
 }
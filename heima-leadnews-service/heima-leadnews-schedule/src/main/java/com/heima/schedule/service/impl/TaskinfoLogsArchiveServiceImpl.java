@@ -0,0 +1,166 @@
+package com.heima.schedule.service.impl;
+
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.heima.common.constants.ScheduleConstants;
+import com.heima.common.redis.CacheService;
+import com.heima.model.schedule.pojos.TaskinfoLogs;
+import com.heima.schedule.mapper.TaskinfoLogsMapper;
+import com.heima.schedule.service.TaskinfoLogsArchiveService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 任务日志归档
+ * EXECUTED/CANCELLED状态且execute_time早于保留时间的记录，按execute_time所在月份迁移到
+ * taskinfo_logs_archive_yyyyMM表中，保持taskinfo_logs只包含近期数据。
+ * 每批最多batch-size条，每批一个事务，单次执行最多max-batches批，避免长事务和长时间锁表；
+ * MySQL的DDL会隐式提交当前事务，归档表在开启事务之前创建
+ */
+@Service
+@Slf4j
+public class TaskinfoLogsArchiveServiceImpl implements TaskinfoLogsArchiveService {
+
+    private static final String ARCHIVE_TABLE_PREFIX = "taskinfo_logs_archive_";
+
+    @Resource
+    private TaskinfoLogsMapper taskinfoLogsMapper;
+
+    @Resource
+    private CacheService cacheService;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 已结束的任务日志保留天数
+     */
+    @Value("${schedule.archive.retention-days:7}")
+    private int retentionDays;
+
+    @Value("${schedule.archive.batch-size:500}")
+    private int batchSize;
+
+    @Value("${schedule.archive.max-batches:200}")
+    private int maxBatches;
+
+    private Counter archivedCounter;
+
+    /**
+     * 最近一次归档记录的execute_time，反映归档进度
+     */
+    private final AtomicLong lastArchivedExecuteTime = new AtomicLong();
+
+    @PostConstruct
+    public void initMetrics() {
+        archivedCounter = meterRegistry.counter("schedule.archive.rows");
+        meterRegistry.gauge("schedule.archive.last.execute.time", lastArchivedExecuteTime);
+    }
+
+    /**
+     * 每天凌晨归档，多个节点只有获取到锁的节点执行
+     */
+    @Scheduled(cron = "${schedule.archive.cron:0 0 3 * * ?}")
+    public void scheduledArchive() {
+        String token = cacheService.tryLock("TASKINFO_LOGS_ARCHIVE", 1000 * 60 * 30);
+        if (StringUtils.isNotBlank(token)) {
+            archive();
+        }
+    }
+
+    @Override
+    public int archive() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.DAY_OF_MONTH, -retentionDays);
+        Date cutoff = calendar.getTime();
+        createArchiveTables(cutoff);
+
+        int total = 0;
+        for (int i = 0; i < maxBatches; i++) {
+            Integer archived = transactionTemplate.execute(status -> archiveBatch(cutoff));
+            total += archived;
+            if (archived < batchSize) {
+                break;
+            }
+        }
+        log.info("任务日志归档完成，本次归档{}条", total);
+        return total;
+    }
+
+    /**
+     * 创建待归档记录涉及的各月份归档表，从最早的待归档记录所在月份到截止时间所在月份
+     * @param cutoff 早于该时间的记录才会归档
+     */
+    private void createArchiveTables(Date cutoff) {
+        TaskinfoLogs earliest = taskinfoLogsMapper.selectOne(Wrappers.<TaskinfoLogs>lambdaQuery()
+                .select(TaskinfoLogs::getExecuteTime)
+                .in(TaskinfoLogs::getStatus, ScheduleConstants.EXECUTED, ScheduleConstants.CANCELLED)
+                .lt(TaskinfoLogs::getExecuteTime, cutoff)
+                .orderByAsc(TaskinfoLogs::getExecuteTime)
+                .last("limit 1"));
+        if (earliest == null) {
+            return;
+        }
+        SimpleDateFormat monthFormat = new SimpleDateFormat("yyyyMM");
+        Calendar month = Calendar.getInstance();
+        month.setTime(earliest.getExecuteTime());
+        String lastMonth = monthFormat.format(cutoff);
+        while (true) {
+            String current = monthFormat.format(month.getTime());
+            taskinfoLogsMapper.createArchiveTable(ARCHIVE_TABLE_PREFIX + current);
+            if (current.compareTo(lastMonth) >= 0) {
+                break;
+            }
+            month.add(Calendar.MONTH, 1);
+        }
+    }
+
+    /**
+     * 归档一批记录
+     * @param cutoff 早于该时间的记录才会归档
+     * @return 本批归档的记录数
+     */
+    private int archiveBatch(Date cutoff) {
+        List<TaskinfoLogs> batch = taskinfoLogsMapper.selectList(Wrappers.<TaskinfoLogs>lambdaQuery()
+                .select(TaskinfoLogs::getTaskId, TaskinfoLogs::getExecuteTime)
+                .in(TaskinfoLogs::getStatus, ScheduleConstants.EXECUTED, ScheduleConstants.CANCELLED)
+                .lt(TaskinfoLogs::getExecuteTime, cutoff)
+                .orderByAsc(TaskinfoLogs::getExecuteTime)
+                .last("limit " + batchSize));
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        // 按月份分组，分别写入对应的归档表，归档表已由createArchiveTables创建
+        SimpleDateFormat monthFormat = new SimpleDateFormat("yyyyMM");
+        Map<String, List<Long>> idsByTable = new HashMap<>();
+        for (TaskinfoLogs taskinfoLogs : batch) {
+            String tableName = ARCHIVE_TABLE_PREFIX + monthFormat.format(taskinfoLogs.getExecuteTime());
+            idsByTable.computeIfAbsent(tableName, k -> new ArrayList<>()).add(taskinfoLogs.getTaskId());
+        }
+        List<Long> taskIds = new ArrayList<>(batch.size());
+        for (Map.Entry<String, List<Long>> entry : idsByTable.entrySet()) {
+            taskinfoLogsMapper.copyToArchive(entry.getKey(), entry.getValue());
+            taskIds.addAll(entry.getValue());
+        }
+        taskinfoLogsMapper.deleteBatchIds(taskIds);
+
+        archivedCounter.increment(batch.size());
+        lastArchivedExecuteTime.set(batch.get(batch.size() - 1).getExecuteTime().getTime());
+        return batch.size();
+    }
+}
@@ -0,0 +1,101 @@
+package com.heima.schedule.shard;
+
+import com.heima.common.constants.ScheduleConstants;
+import com.heima.common.redis.CacheService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * 调度节点分片管理
+ * 每个节点定期在redis的zset中写入心跳(score为心跳时间)，超过存活时间未续约的节点视为下线并被清除。
+ * type_priority键通过最高随机权重哈希(rendezvous hashing)分配给存活节点：
+ * 节点增减时只有该节点负责的键会重新分配，下线节点的键在存活时间过后自动由其他节点接管。
+ * 转移任务的操作都是原子脚本，节点视图短暂不一致时重复处理同一个键也不会产生重复任务
+ */
+@Component
+@Slf4j
+public class ScheduleShardManager {
+
+    @Resource
+    private CacheService cacheService;
+
+    /**
+     * 节点存活时间，超过该时间未续约的节点视为下线，毫秒
+     */
+    @Value("${schedule.shard.node-ttl:10000}")
+    private long nodeTtlMillis;
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private volatile List<String> liveNodes = Collections.emptyList();
+
+    @PostConstruct
+    public void init() {
+        heartbeat();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        // 主动下线，其他节点下次心跳时即可接管
+        cacheService.zRemove(ScheduleConstants.SCHEDULE_NODES, nodeId);
+    }
+
+    /**
+     * 续约当前节点，清除过期节点，并刷新本地的存活节点视图
+     */
+    @Scheduled(fixedDelayString = "${schedule.shard.heartbeat-interval:3000}")
+    public void heartbeat() {
+        try {
+            long now = System.currentTimeMillis();
+            cacheService.zAdd(ScheduleConstants.SCHEDULE_NODES, nodeId, now);
+            cacheService.zRemoveRangeByScore(ScheduleConstants.SCHEDULE_NODES, 0, now - nodeTtlMillis);
+            List<String> nodes = new ArrayList<>(cacheService.zRangeAll(ScheduleConstants.SCHEDULE_NODES));
+            if (nodes.size() != liveNodes.size()) {
+                log.info("schedule nodes changed, live nodes: {}", nodes.size());
+            }
+            liveNodes = nodes;
+        } catch (Exception e) {
+            log.error("schedule node heartbeat exception", e);
+        }
+    }
+
+    /**
+     * 当前节点是否负责该分片
+     * @param shardKey 分片键，如type_priority
+     * @return 存活节点视图为空(尚未完成心跳)时返回true，由当前节点处理
+     */
+    public boolean owns(String shardKey) {
+        List<String> nodes = liveNodes;
+        if (nodes.isEmpty()) {
+            return true;
+        }
+        String owner = null;
+        long maxWeight = -1;
+        for (String node : nodes) {
+            long weight = weight(node, shardKey);
+            if (weight > maxWeight) {
+                maxWeight = weight;
+                owner = node;
+            }
+        }
+        return nodeId.equals(owner);
+    }
+
+    private long weight(String node, String shardKey) {
+        CRC32 crc32 = new CRC32();
+        crc32.update((node + "#" + shardKey).getBytes(StandardCharsets.UTF_8));
+        return crc32.getValue();
+    }
+}
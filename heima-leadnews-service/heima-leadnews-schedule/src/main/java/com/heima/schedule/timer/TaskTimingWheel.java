@@ -0,0 +1,154 @@
+package com.heima.schedule.timer;
+
+import com.heima.common.constants.ScheduleConstants;
+import com.heima.common.redis.CacheService;
+import com.heima.schedule.shard.ScheduleShardManager;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 进程内的时间轮，对即将到期的任务做毫秒级触发
+ * future键中的zset仍然是唯一的数据源，时间轮只是加速器：
+ * 1. 执行时间在时间窗口内的任务，在写入future键的同时加入时间轮，
+ *    并定期从已登记的future键中加载窗口内的任务，服务重启后自动重建
+ * 2. 到期时通过脚本从future键移除该任务并推入topic键，移除失败说明已被refresh转移或已取消，直接忽略
+ * 3. 同一任务的执行时间改变后取消原来的触发，按新的执行时间重新加入；
+ *    触发时任务的分数仍需不大于加入时的执行时间，已改到更晚执行的任务不会被提前转移
+ * 通过schedule.timing-wheel.enabled=true开启
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(prefix = "schedule.timing-wheel", name = "enabled", havingValue = "true")
+public class TaskTimingWheel {
+
+    @Resource
+    private CacheService cacheService;
+
+    @Resource
+    private ScheduleShardManager scheduleShardManager;
+
+    /**
+     * 时间轮每格的时长，毫秒
+     */
+    @Value("${schedule.timing-wheel.tick-millis:10}")
+    private long tickMillis;
+
+    /**
+     * 时间轮的格数
+     */
+    @Value("${schedule.timing-wheel.ticks-per-wheel:512}")
+    private int ticksPerWheel;
+
+    /**
+     * 时间窗口，执行时间在当前时间之后该时长内的任务才会加入时间轮，毫秒
+     */
+    @Value("${schedule.timing-wheel.window-millis:60000}")
+    private long windowMillis;
+
+    private HashedWheelTimer timer;
+
+    /**
+     * 时间轮触发后访问redis的线程池，避免阻塞时间轮的工作线程
+     */
+    private ExecutorService fireExecutor;
+
+    /**
+     * 已加入时间轮的任务，key为future键:任务id，避免重复加入
+     */
+    private final Map<String, Entry> scheduled = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void start() {
+        timer = new HashedWheelTimer(r -> new Thread(r, "task-timing-wheel"), tickMillis, TimeUnit.MILLISECONDS, ticksPerWheel);
+        fireExecutor = Executors.newFixedThreadPool(2, r -> new Thread(r, "task-timing-wheel-fire"));
+        timer.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        timer.stop();
+        fireExecutor.shutdown();
+    }
+
+    /**
+     * 任务写入future键后调用，执行时间在时间窗口内的任务加入时间轮
+     * @param futureKey   任务所在的future键
+     * @param member      任务在zset中的成员，即任务id
+     * @param executeTime 执行时间
+     */
+    public void schedule(String futureKey, String member, long executeTime) {
+        long delay = executeTime - System.currentTimeMillis();
+        if (delay > windowMillis) {
+            return;
+        }
+        String id = futureKey + ":" + member;
+        scheduled.compute(id, (k, entry) -> {
+            if (entry != null) {
+                if (entry.executeTime == executeTime) {
+                    return entry;
+                }
+                entry.timeout.cancel();
+            }
+            Entry created = new Entry(executeTime);
+            created.timeout = timer.newTimeout(
+                    timeout -> fireExecutor.execute(() -> fire(id, futureKey, member, created)),
+                    Math.max(delay, 0), TimeUnit.MILLISECONDS);
+            return created;
+        });
+    }
+
+    /**
+     * 从分配给当前节点的future键中加载时间窗口内的任务，服务重启后也由此重建时间轮
+     */
+    @Scheduled(fixedDelayString = "${schedule.timing-wheel.load-interval:10000}", initialDelay = 0)
+    public void load() {
+        long max = System.currentTimeMillis() + windowMillis;
+        Set<String> futureKeys = cacheService.setMembers(ScheduleConstants.FUTURE_KEYS);
+        for (String futureKey : futureKeys) {
+            if (!scheduleShardManager.owns(futureKey.split(ScheduleConstants.FUTURE)[1])) {
+                continue;
+            }
+            Set<ZSetOperations.TypedTuple<String>> tasks = cacheService.zRangeByScoreWithScores(futureKey, 0, max);
+            for (ZSetOperations.TypedTuple<String> task : tasks) {
+                schedule(futureKey, task.getValue(), task.getScore().longValue());
+            }
+        }
+    }
+
+    private void fire(String id, String futureKey, String member, Entry entry) {
+        // 只移除自己，已被新的执行时间替换时保留新的触发
+        scheduled.remove(id, entry);
+        try {
+            String topicKey = ScheduleConstants.TOPIC + futureKey.split(ScheduleConstants.FUTURE)[1];
+            cacheService.zMoveToList(futureKey, topicKey, member, entry.executeTime);
+        } catch (Exception e) {
+            // 转移失败的任务仍在future键中，由refresh兜底
+            log.error("timing wheel fire exception, key={}", futureKey, e);
+        }
+    }
+
+    private static class Entry {
+        private final long executeTime;
+        private Timeout timeout;
+
+        private Entry(long executeTime) {
+            this.executeTime = executeTime;
+        }
+    }
+}
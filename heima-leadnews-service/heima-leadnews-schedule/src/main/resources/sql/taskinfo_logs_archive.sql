@@ -0,0 +1,6 @@
+-- 任务日志归档按status过滤、execute_time早于保留时间分批读取
+-- status的每个取值在索引上按execute_time做范围扫描，不再全表扫描taskinfo_logs；
+-- 归档表通过create table like创建，同样带有该索引
+
+ALTER TABLE `taskinfo_logs`
+    ADD INDEX `idx_status_execute_time` (`status`, `execute_time`);
@@ -7,4 +7,10 @@ public interface WmNewsAutoScanService {
      * @param id  自媒体文章id
      */
     public void autoScanWmNews(Integer id);
+
+    /**
+     * 自媒体文章审核，在调用线程中同步执行，审核失败时抛出异常
+     * @param id  自媒体文章id
+     */
+    public void scanWmNews(Integer id);
 }
\ No newline at end of file
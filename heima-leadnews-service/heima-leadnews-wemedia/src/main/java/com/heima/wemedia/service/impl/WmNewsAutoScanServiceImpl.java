@@ -65,6 +65,15 @@ public class WmNewsAutoScanServiceImpl implements WmNewsAutoScanService {
     @Override
     @Async
     public void autoScanWmNews(Integer id) {
+        scanWmNews(id);
+    }
+
+    /**
+     * 同步审核自媒体文章，异常直接抛给调用方
+     * @param id 文章ID
+     */
+    @Override
+    public void scanWmNews(Integer id) {
         // 查询文章信息
         WmNews wmNews = wmNewsMapper.selectById(id);
         if(wmNews==null){
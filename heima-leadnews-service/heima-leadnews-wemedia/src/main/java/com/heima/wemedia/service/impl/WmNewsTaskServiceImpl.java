@@ -11,11 +11,15 @@ import com.heima.wemedia.service.WmNewsTaskService;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Async;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 @Service
 @Slf4j
@@ -50,22 +54,85 @@ public class WmNewsTaskServiceImpl implements WmNewsTaskService {
     }
     @Autowired
     private WmNewsAutoScanServiceImpl wmNewsAutoScanService;
-    @Scheduled(fixedRate = 1000)
+    /**
+     * 单次最多拉取的任务数
+     */
+    private static final int POLL_BATCH_SIZE = 10;
+    /**
+     * 任务租约时长，超过该时间未确认的任务会被重新放回队列
+     */
+    private static final long POLL_LEASE_MILLIS = 60 * 1000;
+    /**
+     * 长轮询最长等待时间，需小于feign读超时时间
+     */
+    private static final long LONG_POLL_TIMEOUT_MILLIS = 20 * 1000;
+    /**
+     * 拉取失败后的重试间隔，避免调度服务不可用时空转
+     */
+    private static final long POLL_ERROR_BACKOFF_MILLIS = 1000;
+
+    private volatile boolean consumerRunning = true;
+
+    /**
+     * 应用启动完成后启动消费线程，循环长轮询调度服务，有任务时立即处理，没有任务时阻塞在调度服务端
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startTaskConsumer() {
+        Thread consumer = new Thread(() -> {
+            while (consumerRunning) {
+                try {
+                    scanNewsByTask();
+                } catch (Exception e) {
+                    log.error("文章审核---消费任务异常", e);
+                    try {
+                        Thread.sleep(POLL_ERROR_BACKOFF_MILLIS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }, "wm-news-task-consumer");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    @PreDestroy
+    public void stopTaskConsumer() {
+        consumerRunning = false;
+    }
+
     @Override
     @SneakyThrows
     public void scanNewsByTask() {
         log.info("文章审核---消费任务执行---begin---");
 
-        ResponseResult responseResult = scheduleClient.poll(TaskTypeEnum
-                .NEWS_SCAN_TIME.getTaskType(), TaskTypeEnum.NEWS_SCAN_TIME.getPriority());
+        ResponseResult responseResult = scheduleClient.longPoll(TaskTypeEnum.NEWS_SCAN_TIME.getTaskType(),
+                TaskTypeEnum.NEWS_SCAN_TIME.getPriority(), POLL_BATCH_SIZE, POLL_LEASE_MILLIS, LONG_POLL_TIMEOUT_MILLIS);
         if(responseResult.getCode().equals(200)&&responseResult.getData()!=null){
             String json_str = JSON.toJSONString(responseResult.getData());
-            Task task = JSON.parseObject(json_str, Task.class);
-            byte[] parameters = task.getParameters();
-            WmNews wmNews = ProtostuffUtil.deserialize(parameters, WmNews.class);
-            System.out.println("------------------------------------------------");
-            System.out.println("获取到文章ID："+wmNews.getId());
-            wmNewsAutoScanService.autoScanWmNews(wmNews.getId());
+            List<Task> tasks = JSON.parseArray(json_str, Task.class);
+            List<Long> ackIds = new ArrayList<>(tasks.size());
+            List<Long> failIds = new ArrayList<>();
+            for (Task task : tasks) {
+                try {
+                    WmNews wmNews = ProtostuffUtil.deserialize(task.getParameters(), WmNews.class);
+                    log.info("获取到文章ID：{}",wmNews.getId());
+                    // 在消费线程中同步审核，审核完成后才确认，失败时上报
+                    wmNewsAutoScanService.scanWmNews(wmNews.getId());
+                    ackIds.add(task.getTaskId());
+                }catch (Exception e){
+                    // 上报失败，由调度服务按退避策略重试，上报也失败时等租约到期后重试
+                    log.error("文章审核任务执行失败 taskId={}",task.getTaskId(),e);
+                    failIds.add(task.getTaskId());
+                }
+            }
+            if(!ackIds.isEmpty()){
+                scheduleClient.ack(ackIds);
+            }
+            if(!failIds.isEmpty()){
+                scheduleClient.fail(failIds);
+            }
         }
 
         log.info("文章审核---消费任务执行---end---");